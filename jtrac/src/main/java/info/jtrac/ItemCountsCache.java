@@ -0,0 +1,407 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.jtrac;
+
+import info.jtrac.domain.Counts;
+import info.jtrac.domain.CountsHolder;
+import info.jtrac.domain.Item;
+import info.jtrac.domain.Space;
+import info.jtrac.domain.User;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * in-memory item counts for the dashboard, kept per space and broken up by
+ * status, logged by and assigned to, so that the dashboard is a few map
+ * lookups per space instead of group by queries over the items table
+ *
+ * a space is loaded from the database with one group by query the first time
+ * it is asked for, after that changes are applied as deltas once the
+ * transaction that made them has committed, changes that cannot be expressed
+ * as deltas (bulk updates) drop the space so that it is loaded again
+ */
+public class ItemCountsCache {
+
+    private final JtracDao dao;
+    private final Map<Long, SpaceCounts> cache = new HashMap<Long, SpaceCounts>();
+    // bumped by every commit that changes counts, a space loaded while
+    // a commit was in progress may or may not include it and is not cached
+    private long generation;
+    private int committing;
+    // spaces are loaded in a transaction of their own, see setTransactionManager
+    private TransactionTemplate loadTemplate;
+
+    public ItemCountsCache(JtracDao dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * spaces are then loaded in a read-write transaction of their own, which
+     * never goes to a replica database (see ReplicaRoutingDataSource), counts
+     * that lag behind would otherwise stay wrong for as long as they are
+     * cached as the deltas of later commits are applied on top of them
+     */
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        loadTemplate = new TransactionTemplate(transactionManager);
+        loadTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    public void add(Item item) {
+        change(item.getSpace().getId(), item.getStatus(), item.getLoggedBy(), item.getAssignedTo(), 1);
+    }
+
+    public void remove(Item item) {
+        change(item.getSpace().getId(), item.getStatus(), item.getLoggedBy(), item.getAssignedTo(), -1);
+    }
+
+    /**
+     * to be called after the status and / or assigned to of an item
+     * have been changed, with the values from before the change
+     */
+    public void move(Item item, Integer oldStatus, User oldAssignedTo) {
+        change(item.getSpace().getId(), oldStatus, item.getLoggedBy(), oldAssignedTo, -1);
+        change(item.getSpace().getId(), item.getStatus(), item.getLoggedBy(), item.getAssignedTo(), 1);
+    }
+
+    /**
+     * counts for the space will be loaded from the database again
+     */
+    public void invalidate(Space space) {
+        Pending pending = getPending();
+        if (pending == null) {
+            synchronized(cache) {
+                cache.remove(space.getId());
+                generation++;
+            }
+        } else {
+            pending.invalidated.add(space.getId());
+        }
+    }
+
+    /**
+     * drops everything, the next request per space loads from the database
+     */
+    public void clear() {
+        synchronized(cache) {
+            cache.clear();
+            generation++;
+        }
+    }
+
+    public CountsHolder loadCountsForUser(User user) {
+        Collection<Space> spaces = user.getSpaces();
+        if (spaces.size() == 0) {
+            return null;
+        }
+        if (!isCacheable()) {
+            return dao.loadCountsForUser(user);
+        }
+        List<Long> spaceIds = new ArrayList<Long>(spaces.size());
+        for (Space space : spaces) {
+            spaceIds.add(space.getId());
+        }
+        Map<Long, SpaceCounts> map = getSpaceCounts(spaceIds);
+        CountsHolder ch = new CountsHolder();
+        synchronized(cache) {
+            for (Map.Entry<Long, SpaceCounts> entry : map.entrySet()) {
+                entry.getValue().addTo(ch, entry.getKey(), user.getId());
+            }
+        }
+        return ch;
+    }
+
+    public Counts loadCountsForUserSpace(User user, Space space) {
+        if (!isCacheable()) {
+            return dao.loadCountsForUserSpace(user, space);
+        }
+        List<Long> spaceIds = new ArrayList<Long>(1);
+        spaceIds.add(space.getId());
+        SpaceCounts sc = getSpaceCounts(spaceIds).get(space.getId());
+        Counts c = new Counts(true);
+        synchronized(cache) {
+            sc.addTo(c, user.getId());
+        }
+        return c;
+    }
+
+    //==========================================================================
+
+    /**
+     * a transaction that writes sees its own uncommitted rows
+     * so it neither reads from nor populates the cache
+     */
+    private boolean isCacheable() {
+        return !TransactionSynchronizationManager.isActualTransactionActive()
+                || TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+    }
+
+    private Map<Long, SpaceCounts> getSpaceCounts(List<Long> spaceIds) {
+        Map<Long, SpaceCounts> map = new HashMap<Long, SpaceCounts>(spaceIds.size());
+        List<Long> missing = new ArrayList<Long>();
+        long startGeneration;
+        synchronized(cache) {
+            startGeneration = generation;
+            for (Long spaceId : spaceIds) {
+                SpaceCounts sc = cache.get(spaceId);
+                if (sc == null) {
+                    missing.add(spaceId);
+                } else {
+                    map.put(spaceId, sc);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return map;
+        }
+        Map<Long, SpaceCounts> loaded = new HashMap<Long, SpaceCounts>(missing.size());
+        for (Long spaceId : missing) {
+            loaded.put(spaceId, new SpaceCounts());
+        }
+        for (Object[] oa : findItemCountsForSpaces(missing)) {
+            loaded.get((Long) oa[0]).add((Integer) oa[1], (Long) oa[2], (Long) oa[3], (Long) oa[4]);
+        }
+        map.putAll(loaded);
+        synchronized(cache) {
+            if (generation == startGeneration && committing == 0) {
+                cache.putAll(loaded);
+            }
+        }
+        return map;
+    }
+
+    private List<Object[]> findItemCountsForSpaces(final List<Long> spaceIds) {
+        if (loadTemplate == null) {
+            return dao.findItemCountsForSpaces(spaceIds);
+        }
+        return (List<Object[]>) loadTemplate.execute(new TransactionCallback() {
+            public Object doInTransaction(TransactionStatus status) {
+                return dao.findItemCountsForSpaces(spaceIds);
+            }
+        });
+    }
+
+    private void change(long spaceId, Integer status, User loggedBy, User assignedTo, long count) {
+        Delta delta = new Delta(spaceId, status, loggedBy == null ? null : loggedBy.getId(),
+                assignedTo == null ? null : assignedTo.getId(), count);
+        Pending pending = getPending();
+        if (pending == null) {
+            synchronized(cache) {
+                apply(delta);
+                generation++;
+            }
+        } else {
+            pending.deltas.add(delta);
+        }
+    }
+
+    private void apply(Delta delta) {
+        SpaceCounts sc = cache.get(delta.spaceId);
+        if (sc != null) {
+            sc.add(delta.status, delta.loggedById, delta.assignedToId, delta.count);
+        }
+    }
+
+    /**
+     * changes are collected per transaction and applied in one go after commit
+     * returns null when there is no transaction, the caller then applies directly
+     */
+    private Pending getPending() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+        Pending pending = (Pending) TransactionSynchronizationManager.getResource(this);
+        if (pending == null) {
+            pending = new Pending();
+            TransactionSynchronizationManager.bindResource(this, pending);
+            TransactionSynchronizationManager.registerSynchronization(pending);
+        }
+        return pending;
+    }
+
+    private class Pending extends TransactionSynchronizationAdapter {
+
+        private final List<Delta> deltas = new ArrayList<Delta>();
+        private final Set<Long> invalidated = new HashSet<Long>();
+        private boolean counted;
+
+        @Override
+        public void suspend() {
+            TransactionSynchronizationManager.unbindResource(ItemCountsCache.this);
+        }
+
+        @Override
+        public void resume() {
+            TransactionSynchronizationManager.bindResource(ItemCountsCache.this, this);
+        }
+
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            synchronized(cache) {
+                committing++;
+                counted = true;
+            }
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (TransactionSynchronizationManager.hasResource(ItemCountsCache.this)) {
+                TransactionSynchronizationManager.unbindResource(ItemCountsCache.this);
+            }
+            synchronized(cache) {
+                if (counted) {
+                    committing--;
+                }
+                if (status == STATUS_COMMITTED) {
+                    for (Long spaceId : invalidated) {
+                        cache.remove(spaceId);
+                    }
+                    for (Delta delta : deltas) {
+                        apply(delta);
+                    }
+                } else if (status == STATUS_UNKNOWN) {
+                    for (Delta delta : deltas) {
+                        cache.remove(delta.spaceId);
+                    }
+                    for (Long spaceId : invalidated) {
+                        cache.remove(spaceId);
+                    }
+                }
+                generation++;
+            }
+        }
+
+    }
+
+    private static class Delta {
+
+        private final long spaceId;
+        private final Integer status;
+        private final Long loggedById;
+        private final Long assignedToId;
+        private final long count;
+
+        Delta(long spaceId, Integer status, Long loggedById, Long assignedToId, long count) {
+            this.spaceId = spaceId;
+            this.status = status;
+            this.loggedById = loggedById;
+            this.assignedToId = assignedToId;
+            this.count = count;
+        }
+
+    }
+
+    /**
+     * counts for one space, per status, in total and per user
+     * for the items logged by and assigned to that user
+     */
+    private static class SpaceCounts {
+
+        private final Map<Integer, Long> total = new HashMap<Integer, Long>();
+        private final Map<Long, Map<Integer, Long>> loggedBy = new HashMap<Long, Map<Integer, Long>>();
+        private final Map<Long, Map<Integer, Long>> assignedTo = new HashMap<Long, Map<Integer, Long>>();
+
+        void add(Integer status, Long loggedById, Long assignedToId, long count) {
+            increment(total, status, count);
+            if (loggedById != null) {
+                increment(loggedBy, loggedById, status, count);
+            }
+            if (assignedToId != null) {
+                increment(assignedTo, assignedToId, status, count);
+            }
+        }
+
+        void addTo(CountsHolder ch, long spaceId, long userId) {
+            long count = sum(loggedBy.get(userId));
+            if (count > 0) {
+                ch.addLoggedByMe(spaceId, count);
+            }
+            count = sum(assignedTo.get(userId));
+            if (count > 0) {
+                ch.addAssignedToMe(spaceId, count);
+            }
+            count = sum(total);
+            if (count > 0) {
+                ch.addTotal(spaceId, count);
+            }
+        }
+
+        void addTo(Counts c, long userId) {
+            Map<Integer, Long> map = loggedBy.get(userId);
+            if (map != null) {
+                for (Map.Entry<Integer, Long> entry : map.entrySet()) {
+                    c.addLoggedByMe(entry.getKey(), entry.getValue());
+                }
+            }
+            map = assignedTo.get(userId);
+            if (map != null) {
+                for (Map.Entry<Integer, Long> entry : map.entrySet()) {
+                    c.addAssignedToMe(entry.getKey(), entry.getValue());
+                }
+            }
+            for (Map.Entry<Integer, Long> entry : total.entrySet()) {
+                c.addTotal(entry.getKey(), entry.getValue());
+            }
+        }
+
+        private static void increment(Map<Long, Map<Integer, Long>> userMap, Long userId, Integer status, long count) {
+            Map<Integer, Long> map = userMap.get(userId);
+            if (map == null) {
+                map = new HashMap<Integer, Long>();
+                userMap.put(userId, map);
+            }
+            increment(map, status, count);
+            if (map.isEmpty()) {
+                userMap.remove(userId);
+            }
+        }
+
+        private static void increment(Map<Integer, Long> map, Integer status, long count) {
+            Long current = map.get(status);
+            long value = (current == null ? 0 : current) + count;
+            if (value == 0) {
+                map.remove(status);
+            } else {
+                map.put(status, value);
+            }
+        }
+
+        private static long sum(Map<Integer, Long> map) {
+            long sum = 0;
+            if (map != null) {
+                for (Long count : map.values()) {
+                    sum += count;
+                }
+            }
+            return sum;
+        }
+
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.jtrac;
+
+import info.jtrac.domain.Item;
+
+/**
+ * callback for operations that have to go over all the items in the
+ * database, like rebuilding the indexes or exporting to XML
+ * items are handed over one at a time in id order with the history
+ * already loaded, and are detached from the session soon after, so
+ * implementations should not hold on to them, changes made to them
+ * are written before they are detached
+ */
+public interface ItemVisitor {
+
+    void visit(Item item);
+
+}
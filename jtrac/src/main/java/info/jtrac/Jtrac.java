@@ -25,6 +25,7 @@ import info.jtrac.domain.History;
 import info.jtrac.domain.Item;
 import info.jtrac.domain.ItemItem;
 import info.jtrac.domain.ItemSearch;
+import info.jtrac.domain.Job;
 import info.jtrac.domain.Metadata;
 import info.jtrac.domain.Space;
 import info.jtrac.domain.User;
@@ -32,6 +33,7 @@ import info.jtrac.domain.UserSpaceRole;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.acegisecurity.userdetails.UserDetailsService;
 import org.apache.wicket.markup.html.form.upload.FileUpload;
@@ -44,23 +46,33 @@ public interface Jtrac extends UserDetailsService {
     // TODO remove Wicket dep with FileUpload
     void storeItem(Item item, FileUpload fileUpload);
     void storeItems(List<Item> items);
+    void storeItems(List<Item> items, BatchInfo batchInfo);
     void updateItem(Item item, User user);
     void storeHistoryForItem(long itemId, History history, FileUpload fileUpload);
     Item loadItem(long id);
     Item loadItemByRefId(String refId);
     History loadHistory(long id);
     List<Item> findItems(ItemSearch itemSearch);  
+    // only the visible columns are loaded, for display only
+    List<Item> findItemRows(ItemSearch itemSearch);
     int loadCountOfAllItems();
-    List<Item> findAllItems(int firstResult, int batchSize);
+    void visitAllItems(ItemVisitor visitor);
+    // stores the existing history as deltas
+    // returns the background jobs that do the conversion, one per space, see Job
+    List<Job> updateHistoryToDeltas();
+    int loadCountOfItemsToArchive();
+    // returns the background jobs that do the archiving, one per space, see Job
+    List<Job> bulkUpdateArchiveItems();
     void removeItem(Item item);
     void removeItemItem(ItemItem itemItem);
     //========================================================
     int loadCountOfRecordsHavingFieldNotNull(Space space, Field field);
-    int bulkUpdateFieldToNull(Space space, Field field);
+    // these return the background job that does the updates, see Job
+    Job bulkUpdateFieldToNull(Space space, Field field);
     int loadCountOfRecordsHavingFieldWithValue(Space space, Field field, int optionKey);
-    int bulkUpdateFieldToNullForValue(Space space, Field field, int optionKey);
+    Job bulkUpdateFieldToNullForValue(Space space, Field field, int optionKey);
     int loadCountOfRecordsHavingStatus(Space space, int status);
-    int bulkUpdateStatusToOpen(Space space, int status);
+    Job bulkUpdateStatusToOpen(Space space, int status);
     int bulkUpdateRenameSpaceRole(Space space, String oldRoleKey, String newRoleKey);
     int bulkUpdateDeleteSpaceRole(Space space, String roleKey);
     //========================================================
@@ -80,9 +92,11 @@ public interface Jtrac extends UserDetailsService {
     List<User> findUsersForUser(User user);
     List<User> findUsersNotFullyAllocatedToSpace(long spaceId);
     int loadCountOfHistoryInvolvingUser(User user);
+    int loadCountOfItemUsersInvolvingUser(User user);
     //========================================================
     CountsHolder loadCountsForUser(User user);
     Counts loadCountsForUserSpace(User user, Space space);
+    void clearCounts();
     //========================================================
     void storeSpace(Space space);
     Space loadSpace(long id);
@@ -91,7 +105,11 @@ public interface Jtrac extends UserDetailsService {
     List<Space> findSpacesWhereIdIn(List<Long> ids);
     List<Space> findSpacesWhereGuestAllowed();
     List<Space> findSpacesNotFullyAllocatedToUser(long userId);
-    void removeSpace(Space space);
+    Job removeSpace(Space space);
+    Job loadJob(long id);
+    // removed fields and options whose records are still being cleared by a job, not to be reused yet
+    Set<String> findFieldNamesReservedByJobs(Space space);
+    Set<String> findOptionKeysReservedByJobs(Space space, Field field);
     //========================================================
     void storeUserSpaceRole(User user, Space space, String roleKey);
     UserSpaceRole loadUserSpaceRole(long id);
@@ -106,6 +124,7 @@ public interface Jtrac extends UserDetailsService {
     String getDefaultLocale();
     String getJtracHome();
     int getAttachmentMaxSizeInMb();
+    int getArchiveAgeInDays();
     int getSessionTimeoutInMinutes();
     //========================================================
     Map<String, String> loadAllConfig();
@@ -28,10 +28,11 @@ import info.jtrac.domain.User;
 import info.jtrac.domain.Field;
 import info.jtrac.domain.History;
 import info.jtrac.domain.ItemItem;
-import info.jtrac.domain.ItemUser;
+import info.jtrac.domain.Job;
 import info.jtrac.domain.SpaceSequence;
 import info.jtrac.domain.UserSpaceRole;
 import java.util.Collection;
+import java.util.Date;
 
 import java.util.List;
 
@@ -42,27 +43,44 @@ import java.util.List;
 public interface JtracDao {
     
     void storeItem(Item item);
+    void storeItems(List<Item> items);
     Item loadItem(long id);
     History loadHistory(long id);
     void storeHistory(History history);
     List<Item> findItems(long sequenceNum, String prefixCode);
+    List<Item> findArchivedItems(long sequenceNum, String prefixCode);
     List<Item> findItems(ItemSearch itemSearch);
+    List<Item> findItemRows(ItemSearch itemSearch);
     int loadCountOfAllItems();
-    List<Item> findAllItems(int firstResult, int batchSize);
+    int loadCountOfArchivedItems();
+    void visitAllItems(ItemVisitor visitor, int batchSize);
+    void visitItems(ItemVisitor visitor, int batchSize, long afterItemId, long lastItemId);
+    void visitItems(ItemVisitor visitor, int batchSize, Space space, long afterItemId, long lastItemId);
+    void visitArchivedItems(ItemVisitor visitor, int batchSize, long afterItemId, long lastItemId);
+    long loadMaxItemId();
     void removeItem(Item item);
     void removeItemItem(ItemItem itemItem);
-    List<ItemUser> findItemUsersByUser(User user);
-    void removeItemUser(ItemUser itemUser);
     //===========================================
     int loadCountOfRecordsHavingFieldNotNull(Space space, Field field);
-    int bulkUpdateFieldToNull(Space space, Field field);
+    int bulkUpdateFieldToNull(Space space, Field field, long afterItemId, long lastItemId);
     int loadCountOfRecordsHavingFieldWithValue(Space space, Field field, int optionKey);
-    int bulkUpdateFieldToNullForValue(Space space, Field field, int optionKey);
+    int bulkUpdateFieldToNullForValue(Space space, Field field, int optionKey, long afterItemId, long lastItemId);
     int loadCountOfRecordsHavingStatus(Space space, int status);
-    int bulkUpdateStatusToOpen(Space space, int status);
+    int bulkUpdateStatusToOpen(Space space, int status, long afterItemId, long lastItemId);
     int bulkUpdateRenameSpaceRole(Space space, String oldRoleKey, String newRoleKey);
     int bulkUpdateDeleteSpaceRole(Space space, String roleKey);
-    int bulkUpdateDeleteItemsForSpace(Space space);    
+    int bulkUpdateDeleteItemsForSpace(Space space, long afterItemId, long lastItemId);
+    int bulkUpdateDeleteArchivedItemsForSpace(Space space);
+    List<Long> findItemIdsForSpace(Space space, long afterItemId, int maxResults);
+    int loadCountOfItemsForSpace(Space space);
+    int loadCountOfItemsToArchive(Date closedBefore);
+    int bulkUpdateArchiveItems(Space space, Date closedBefore, long afterItemId, long lastItemId);
+    //========================================================    
+    void storeJob(Job job);
+    Job loadJob(long id);
+    List<Job> findAllJobs();
+    List<Job> findJobsForSpace(long spaceId);
+    void removeJob(Job job);
     //========================================================    
     void storeAttachment(Attachment attachment);
     //===========================================
@@ -79,6 +97,7 @@ public interface JtracDao {
     void removeSpace(Space space);
     //=========================================== 
     long loadNextSequenceNum(long spaceSequenceId); 
+    long reserveSequenceNums(long spaceSequenceId, int count);
     void storeSpaceSequence(SpaceSequence spaceSequence);
     //===========================================
     void storeUser(User user);
@@ -97,12 +116,16 @@ public interface JtracDao {
     List<User> findUsersForSpaceSet(Collection<Space> spaces);
     List<User> findSuperUsers();
     int loadCountOfHistoryInvolvingUser(User user);
+    int loadCountOfItemUsersInvolvingUser(User user);
+    int bulkUpdateDeleteItemUsersForUser(User user);
+    int bulkUpdateDeleteUserSpaceRolesForUser(User user);
     //===========================================
     UserSpaceRole loadUserSpaceRole(long id);
     void removeUserSpaceRole(UserSpaceRole userSpaceRole);
     //===========================================
     CountsHolder loadCountsForUser(User user);
     Counts loadCountsForUserSpace(User user, Space space);
+    List<Object[]> findItemCountsForSpaces(Collection<Long> spaceIds);
     //===========================================
     List<Config> findAllConfig();
     void storeConfig(Config config);
@@ -16,6 +16,7 @@
 
 package info.jtrac;
 
+import info.jtrac.domain.AbstractItem;
 import info.jtrac.domain.Attachment;
 import info.jtrac.domain.BatchInfo;
 import info.jtrac.domain.Config;
@@ -27,7 +28,7 @@ import info.jtrac.domain.Item;
 import info.jtrac.domain.ItemItem;
 import info.jtrac.domain.ItemRefId;
 import info.jtrac.domain.ItemSearch;
-import info.jtrac.domain.ItemUser;
+import info.jtrac.domain.Job;
 import info.jtrac.domain.Metadata;
 import info.jtrac.domain.Role;
 import info.jtrac.domain.Space;
@@ -35,12 +36,15 @@ import info.jtrac.domain.SpaceSequence;
 import info.jtrac.domain.State;
 import info.jtrac.domain.User;
 import info.jtrac.domain.UserSpaceRole;
+import info.jtrac.lucene.IndexPart;
 import info.jtrac.lucene.IndexSearcher;
 import info.jtrac.lucene.Indexer;
 import info.jtrac.mail.MailSender;
 import info.jtrac.util.AttachmentUtils;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -53,12 +57,24 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 import org.acegisecurity.providers.encoding.PasswordEncoder;
 import org.acegisecurity.userdetails.UserDetails;
 import org.acegisecurity.userdetails.UsernameNotFoundException;
 import org.springframework.context.MessageSource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.StringUtils;
 import org.apache.wicket.markup.html.form.upload.FileUpload;
 import org.slf4j.Logger;
@@ -75,11 +91,14 @@ public class JtracImpl implements Jtrac {
     private static final Logger logger = LoggerFactory.getLogger(JtracImpl.class);
     
     private JtracDao dao;
+    private ItemCountsCache itemCounts;
     private PasswordEncoder passwordEncoder;
     private MailSender mailSender;
     private Indexer indexer;
     private IndexSearcher indexSearcher;
     private MessageSource messageSource;
+    private TransactionTemplate transactionTemplate;
+    private int indexRebuildWorkers = 1;
 
     private Map<String, String> locales;
     private String defaultLocale = "en";
@@ -88,6 +107,24 @@ public class JtracImpl implements Jtrac {
     private String jtracHome;
     private int attachmentMaxSizeInMb = 5;
     private int sessionTimeoutInMinutes = 30;
+    private boolean historyDeltas;
+    private int archiveAgeInDays;
+    
+    // writes are serialized per space (new items, sequence numbers) or per item
+    // (edits, history) instead of on this instance, so that unrelated spaces
+    // do not queue behind each other.  ids are hashed onto a fixed set of monitors
+    private static final int LOCK_STRIPES = 64;
+    private final Object[] spaceLocks = newLockStripes();
+    private final Object[] itemLocks = newLockStripes();
+    
+    // background jobs run one at a time, each chunk in a transaction of its own, see Job
+    private final ExecutorService jobExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "jtrac-jobs");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     public void setLocaleList(String[] array) {
         locales = new LinkedHashMap<String, String>();
@@ -100,6 +137,7 @@ public class JtracImpl implements Jtrac {
 
     public void setDao(JtracDao dao) {
         this.dao = dao;
+        this.itemCounts = new ItemCountsCache(dao);
     }
 
     public void setPasswordEncoder(PasswordEncoder passwordEncoder) {
@@ -114,10 +152,18 @@ public class JtracImpl implements Jtrac {
         this.indexer = indexer;
     }
 
+    public void setIndexRebuildWorkers(int indexRebuildWorkers) {
+        this.indexRebuildWorkers = Math.max(1, indexRebuildWorkers);
+    }
+
     public void setMessageSource(MessageSource messageSource) {
         this.messageSource = messageSource;
     }
 
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
     public void setReleaseTimestamp(String releaseTimestamp) {
         this.releaseTimestamp = releaseTimestamp;
     }
@@ -142,6 +188,10 @@ public class JtracImpl implements Jtrac {
         return sessionTimeoutInMinutes;
     }
 
+    public int getArchiveAgeInDays() {
+        return archiveAgeInDays;
+    }
+
     /**
      * this has not been factored into the util package or a helper class
      * because it depends on the PasswordEncoder configured
@@ -180,6 +230,28 @@ public class JtracImpl implements Jtrac {
         initMailSender(config);        
         initAttachmentMaxSize(config.get("attachment.maxsize"));
         initSessionTimeout(config.get("session.timeout"));
+        initHistoryDeltas(config.get("history.deltas"));
+        initArchiveAge(config.get("archive.days"));
+        itemCounts.setTransactionManager(transactionTemplate.getTransactionManager());
+        resumeJobs();
+    }
+    
+    /**
+     * carries on with the jobs that were interrupted by a shutdown or a crash
+     */
+    private void resumeJobs() {
+        for (Job job : dao.findAllJobs()) {
+            logger.info("resuming job: " + job);
+            submitJob(job.getId());
+        }
+    }
+    
+    /**
+     * the job in progress stops after its current chunk
+     * called by the spring destroy-method hook on shutdown
+     */
+    public void stopJobs() {
+        jobExecutor.shutdownNow();
     }
     
     private void initMailSender(Map<String, String> config) {
@@ -213,7 +285,45 @@ public class JtracImpl implements Jtrac {
         logger.info("session timeout set to " + this.sessionTimeoutInMinutes + " minutes");
     }
     
+    private void initHistoryDeltas(String s) {
+        this.historyDeltas = Boolean.valueOf(s);
+        logger.info("history stored as deltas: " + this.historyDeltas);
+    }
+    
+    private void initArchiveAge(String s) {
+        this.archiveAgeInDays = 0;
+        if (s != null && s.trim().length() > 0) {
+            try {
+                this.archiveAgeInDays = Math.max(0, Integer.parseInt(s.trim()));
+            } catch(Exception e) {
+                logger.warn("invalid archive age '" + s + "', archiving switched off");
+            }
+        }
+        logger.info("archive age set to " + this.archiveAgeInDays + " days (0 = off)");
+    }
+    
     //==========================================================================
+    
+    private static Object[] newLockStripes() {
+        Object[] locks = new Object[LOCK_STRIPES];
+        for(int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+    
+    private static Object getLock(Object[] locks, long id) {
+        int hash = (int) (id ^ (id >>> 32));
+        return locks[(hash & Integer.MAX_VALUE) % locks.length];
+    }
+    
+    private Object getSpaceLock(Space space) {
+        return getLock(spaceLocks, space.getId());
+    }
+    
+    private Object getItemLock(long itemId) {
+        return getLock(itemLocks, itemId);
+    }
 
     private Attachment getAttachment(FileUpload fileUpload) {
         if(fileUpload == null) {
@@ -241,108 +351,261 @@ public class JtracImpl implements Jtrac {
 
     }
 
-    public synchronized void storeItem(Item item, FileUpload fileUpload) {
-        History history = new History(item);
-        Attachment attachment = getAttachment(fileUpload);
-        if(attachment != null) {
-            item.add(attachment);
-            history.setAttachment(attachment);
+    public void storeItem(Item item, FileUpload fileUpload) {
+        // the space lock guards the SpaceSequence for this space
+        synchronized(getSpaceLock(item.getSpace())) {
+            History history = new History(item);
+            Attachment attachment = getAttachment(fileUpload);
+            if(attachment != null) {
+                item.add(attachment);
+                history.setAttachment(attachment);
+            }
+            // timestamp can be set by import, then retain
+            Date now = item.getTimeStamp();
+            if(now == null) {
+                now = new Date();
+            }
+            item.setTimeStamp(now);
+            history.setTimeStamp(now);
+            item.add(history);
+            item.setSequenceNum(dao.loadNextSequenceNum(item.getSpace().getId()));
+            // this will at the moment execute unnecessary updates (bug in Hibernate handling of "version" property)
+            // se http://opensource.atlassian.com/projects/hibernate/browse/HHH-1401
+            // TODO confirm if above does not happen anymore
+            dao.storeItem(item);        
+            itemCounts.add(item);
+            writeToFile(fileUpload, attachment);
+            indexAfterCommit(Arrays.asList(item, history));
+            if (item.isSendNotifications()) {
+                mailSender.send(item);
+            }
         }
+    }
+
+    public void storeItems(List<Item> items) {
+        storeItems(items, new BatchInfo());
+    }
+    
+    /**
+     * bulk import, sequence numbers are reserved per space in one go,
+     * items are written a batch at a time and indexed in one pass at the end
+     * no notifications are sent for imported items
+     */
+    public void storeItems(List<Item> items, BatchInfo batchInfo) {
+        batchInfo.setTotalSize(items.size());
+        Map<Long, Space> spaces = new LinkedHashMap<Long, Space>();
+        Map<Long, Integer> counts = new HashMap<Long, Integer>();
+        for (Item item : items) {
+            long spaceId = item.getSpace().getId();
+            Integer count = counts.get(spaceId);
+            counts.put(spaceId, count == null ? 1 : count + 1);
+            spaces.put(spaceId, item.getSpace());
+        }
+        Map<Long, Long> nextSequenceNums = new HashMap<Long, Long>(spaces.size());
+        for (Space space : spaces.values()) {
+            synchronized(getSpaceLock(space)) {
+                long first = dao.reserveSequenceNums(space.getId(), counts.get(space.getId()));
+                nextSequenceNums.put(space.getId(), first);
+            }
+        }
+        List<AbstractItem> toIndex = new ArrayList<AbstractItem>(items.size() * 2);
+        List<Item> batch = new ArrayList<Item>(batchInfo.getBatchSize());
+        for (Item item : items) {
+            long spaceId = item.getSpace().getId();
+            long sequenceNum = nextSequenceNums.get(spaceId);
+            nextSequenceNums.put(spaceId, sequenceNum + 1);
+            prepareForImport(item, sequenceNum);
+            batch.add(item);
+            if (batch.size() == batchInfo.getBatchSize()) {
+                dao.storeItems(batch);
+                addForCounts(batch);
+                addForIndexing(batch, toIndex);
+                batchInfo.setCurrentPosition(batchInfo.getCurrentPosition() + batch.size());
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            dao.storeItems(batch);
+            addForCounts(batch);
+            addForIndexing(batch, toIndex);
+            batchInfo.setCurrentPosition(batchInfo.getCurrentPosition() + batch.size());
+        }
+        logger.info("imported " + items.size() + " items");
+        indexAfterCommit(toIndex);
+    }
+    
+    private void prepareForImport(Item item, long sequenceNum) {
+        item.setSendNotifications(false);
         // timestamp can be set by import, then retain
         Date now = item.getTimeStamp();
         if(now == null) {
             now = new Date();
         }
         item.setTimeStamp(now);
+        boolean closed = item.getStatus() == State.CLOSED;
+        if(closed) {
+            // we support CLOSED items for import also but for consistency
+            // simulate the item first created OPEN and then being CLOSED
+            item.setStatus(State.OPEN);
+        }
+        History history = new History(item);
         history.setTimeStamp(now);
         item.add(history);
-        item.setSequenceNum(dao.loadNextSequenceNum(item.getSpace().getId()));
-        // this will at the moment execute unnecessary updates (bug in Hibernate handling of "version" property)
-        // se http://opensource.atlassian.com/projects/hibernate/browse/HHH-1401
-        // TODO confirm if above does not happen anymore
-        dao.storeItem(item);        
-        writeToFile(fileUpload, attachment);
-        if(indexer != null) {
-            indexer.index(item);
-            indexer.index(history);
+        if(closed) {
+            History closing = new History();
+            closing.setTimeStamp(now);
+            closing.setLoggedBy(item.getLoggedBy());
+            closing.setAssignedTo(item.getAssignedTo());
+            closing.setComment("-");
+            closing.setStatus(State.CLOSED);
+            item.setStatus(State.CLOSED);
+            item.add(closing);
         }
-        if (item.isSendNotifications()) {
-            mailSender.send(item);
+        item.setSequenceNum(sequenceNum);
+    }
+    
+    private void addForCounts(List<Item> items) {
+        for(Item item : items) {
+            itemCounts.add(item);
+        }
+    }
+    
+    /**
+     * the indexer works off a queue in the background, documents are only
+     * queued once the transaction commits so that the index never has
+     * entries for changes that were rolled back, and saves never wait for Lucene
+     */
+    private void indexAfterCommit(final List<? extends AbstractItem> items) {
+        if (items.isEmpty()) {
+            return;
         }
+        runAfterCommit(new Runnable() {
+            public void run() {
+                indexer.index(items);
+            }
+        });
     }
 
-    public synchronized void storeItems(List<Item> items) {
-        for(Item item : items) {
-            item.setSendNotifications(false);
-            if(item.getStatus() == State.CLOSED) {
-                // we support CLOSED items for import also but for consistency
-                // simulate the item first created OPEN and then being CLOSED
-                item.setStatus(State.OPEN);
-                History history = new History();
-                history.setTimeStamp(item.getTimeStamp());
-                // need to do this as storeHistoryForItem does some role checks
-                // and so to avoid lazy initialization exception
-                history.setLoggedBy(loadUser(item.getLoggedBy().getId()));
-                history.setAssignedTo(item.getAssignedTo());
-                history.setComment("-");
-                history.setStatus(State.CLOSED); 
-                history.setSendNotifications(false);
-                storeItem(item, null);
-                storeHistoryForItem(item.getId(), history, null);
-            } else {
-                storeItem(item, null);
-            }
-        }
-    }
-    
-    public synchronized void updateItem(Item item, User user) {
-        logger.debug("update item called");
-        History history = new History(item);
-        history.setAssignedTo(null);
-        history.setStatus(null);
-        history.setLoggedBy(user);
-        history.setComment(item.getEditReason());
-        history.setTimeStamp(new Date());
-        item.add(history);
-        dao.storeItem(item);  // merge edits + history        
-        // TODO index?
-        if (item.isSendNotifications()) {
-            mailSender.send(item);
+    /**
+     * for records that may have been indexed before, the old documents are
+     * replaced instead of being left behind as duplicates
+     */
+    private void reindexAfterCommit(final List<? extends AbstractItem> items) {
+        if (items.isEmpty()) {
+            return;
         }
+        runAfterCommit(new Runnable() {
+            public void run() {
+                indexer.reindex(items);
+            }
+        });
     }
 
-    public synchronized void storeHistoryForItem(long itemId, History history, FileUpload fileUpload) {
-        Item item = dao.loadItem(itemId);
-        // first apply edits onto item record before we change the item status
-        // the item.getEditableFieldList routine depends on the current State of the item
-        for(Field field : item.getEditableFieldList(history.getLoggedBy())) {
-            Object value = history.getValue(field.getName());
-            if (value != null) {
-                item.setValue(field.getName(), value);
+    /**
+     * drops the documents for these items and all their history
+     */
+    private void removeFromIndexAfterCommit(final List<Long> itemIds) {
+        if (itemIds.isEmpty()) {
+            return;
+        }
+        runAfterCommit(new Runnable() {
+            public void run() {
+                indexer.remove(itemIds);
             }
+        });
+    }
+
+    private void runAfterCommit(final Runnable task) {
+        if (indexer == null) {
+            return;
         }
-        if (history.getStatus() != null) {
-            item.setStatus(history.getStatus());
-            item.setAssignedTo(history.getAssignedTo()); // this may be null, when closing
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    task.run();
+                }
+            });
+        } else {
+            task.run();
         }
-        item.setItemUsers(history.getItemUsers());
-        // may have been set if this is an import
-        if(history.getTimeStamp() == null) {
-            history.setTimeStamp(new Date());
+    }
+    
+    private void addForIndexing(List<Item> items, List<AbstractItem> toIndex) {
+        for(Item item : items) {
+            toIndex.add(item);
+            toIndex.addAll(item.getHistory());
         }
-        Attachment attachment = getAttachment(fileUpload);
-        if(attachment != null) {
-            item.add(attachment);
-            history.setAttachment(attachment);
+    }
+    
+    public void updateItem(Item item, User user) {
+        synchronized(getItemLock(item.getId())) {
+            logger.debug("update item called");
+            History history = new History(item);
+            if (historyDeltas) {
+                // the stored item is loaded by the merge anyway
+                history.storeChanges(new History(dao.loadItem(item.getId())), item);
+            }
+            history.setAssignedTo(null);
+            history.setStatus(null);
+            history.setLoggedBy(user);
+            history.setComment(item.getEditReason());
+            history.setTimeStamp(new Date());
+            item.add(history);
+            dao.storeItem(item);  // merge edits + history        
+            // the edited item is detached, the previous values are not known here
+            itemCounts.invalidate(item.getSpace());
+            // the merged copy is in the session, it has the id of the new history
+            Item stored = dao.loadItem(item.getId());
+            reindexAfterCommit(Collections.singletonList(stored));
+            indexAfterCommit(Collections.singletonList(stored.getLatestHistory()));
+            if (item.isSendNotifications()) {
+                mailSender.send(item);
+            }
         }
-        item.add(history);
-        dao.storeItem(item);        
-        writeToFile(fileUpload, attachment);
-        if(indexer != null) {
-            indexer.index(history);
-        }        
-        if (history.isSendNotifications()) {
-            mailSender.send(item);
+    }
+
+    public void storeHistoryForItem(long itemId, History history, FileUpload fileUpload) {
+        synchronized(getItemLock(itemId)) {
+            Item item = dao.loadItem(itemId);
+            Integer oldStatus = item.getStatus();
+            User oldAssignedTo = item.getAssignedTo();
+            History before = historyDeltas ? new History(item) : null;
+            // first apply edits onto item record before we change the item status
+            // the item.getEditableFieldList routine depends on the current State of the item
+            for(Field field : item.getEditableFieldList(history.getLoggedBy())) {
+                Object value = history.getValue(field.getName());
+                if (value != null) {
+                    item.setValue(field.getName(), value);
+                }
+            }
+            if (history.getStatus() != null) {
+                item.setStatus(history.getStatus());
+                item.setAssignedTo(history.getAssignedTo()); // this may be null, when closing
+            }
+            item.setItemUsers(history.getItemUsers());
+            if (before != null) {
+                history.storeChanges(before, item);
+            }
+            // may have been set if this is an import
+            if(history.getTimeStamp() == null) {
+                history.setTimeStamp(new Date());
+            }
+            Attachment attachment = getAttachment(fileUpload);
+            if(attachment != null) {
+                item.add(attachment);
+                history.setAttachment(attachment);
+            }
+            item.add(history);
+            dao.storeItem(item);        
+            itemCounts.move(item, oldStatus, oldAssignedTo);
+            writeToFile(fileUpload, attachment);
+            // edits may have been applied to the item as well
+            reindexAfterCommit(Collections.singletonList(item));
+            indexAfterCommit(Collections.singletonList(history));
+            if (history.isSendNotifications()) {
+                mailSender.send(item);
+            }
         }
     }
 
@@ -353,6 +616,10 @@ public class JtracImpl implements Jtrac {
     public Item loadItemByRefId(String refId) {
         ItemRefId itemRefId = new ItemRefId(refId); // throws runtime exception if invalid id
         List<Item> items = dao.findItems(itemRefId.getSequenceNum(), itemRefId.getPrefixCode());
+        if (items.size() == 0) {
+            // archived items stay viewable by ref id, read-only
+            items = dao.findArchivedItems(itemRefId.getSequenceNum(), itemRefId.getPrefixCode());
+        }
         if (items.size() == 0) {
             return null;
         }
@@ -364,24 +631,115 @@ public class JtracImpl implements Jtrac {
     }
 
     public List<Item> findItems(ItemSearch itemSearch) {
+        if (!applySearchText(itemSearch)) {
+            return Collections.<Item>emptyList();
+        }
+        return replaceHistoryDeltas(itemSearch, dao.findItems(itemSearch));
+    }
+
+    public List<Item> findItemRows(ItemSearch itemSearch) {
+        if (!applySearchText(itemSearch)) {
+            return Collections.<Item>emptyList();
+        }
+        return replaceHistoryDeltas(itemSearch, dao.findItemRows(itemSearch));
+    }
+    
+    /**
+     * when showing history the results are History entries, the ones stored
+     * as deltas only hold what changed and are swapped for the state of the
+     * item at that point, rebuilt once per item from its whole history
+     */
+    private List<Item> replaceHistoryDeltas(ItemSearch itemSearch, List<Item> list) {
+        if (!itemSearch.isShowHistory()) {
+            return list;
+        }
+        Map<String, List<History>> states = new HashMap<String, List<History>>();
+        // the list holds History instances, see ItemSearch
+        List<AbstractItem> rows = (List) list;
+        for (int i = 0; i < rows.size(); i++) {
+            History h = (History) rows.get(i);
+            if (!h.isDelta()) {
+                continue;
+            }
+            String refId = h.getRefId();
+            List<History> itemStates = states.get(refId);
+            if (itemStates == null) {
+                itemStates = loadItemByRefId(refId).getHistoryStates();
+                states.put(refId, itemStates);
+            }
+            rows.set(i, itemStates.get(h.getIndex()));
+        }
+        return list;
+    }
+
+    /**
+     * narrows the search down to the items matching the text search if any
+     * returns false if there can be no results
+     */
+    private boolean applySearchText(ItemSearch itemSearch) {
         String searchText = itemSearch.getSearchText();
         if (searchText != null) {
             List<Long> hits = indexSearcher.findItemIdsContainingText(searchText);
             if (hits.size() == 0) {
                 itemSearch.setResultCount(0);
-                return Collections.<Item>emptyList();
+                return false;
             }
             itemSearch.setItemIds(hits);
         }
-        return dao.findItems(itemSearch);
+        return true;
     }
     
     public int loadCountOfAllItems() {
         return dao.loadCountOfAllItems();
     }
     
-    public List<Item> findAllItems(int firstResult, int batchSize) {
-        return dao.findAllItems(firstResult, batchSize);
+    public void visitAllItems(ItemVisitor visitor) {
+        dao.visitAllItems(visitor, new BatchInfo().getBatchSize());
+    }
+    
+    /**
+     * the history table can be large, so it is converted in the background
+     * a chunk of items at a time, entries already converted are left alone
+     */
+    public List<Job> updateHistoryToDeltas() {
+        List<Job> jobs = new ArrayList<Job>();
+        for (Space space : dao.findAllSpaces()) {
+            jobs.add(startJob(new Job(Job.HISTORY_TO_DELTAS, space), space));
+        }
+        return jobs;
+    }
+    
+    private static Date getArchiveCutoff(Date from, int ageInDays) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(from);
+        calendar.add(Calendar.DATE, -ageInDays);
+        return calendar.getTime();
+    }
+    
+    public int loadCountOfItemsToArchive() {
+        if (archiveAgeInDays == 0) {
+            return 0;
+        }
+        return dao.loadCountOfItemsToArchive(getArchiveCutoff(new Date(), archiveAgeInDays));
+    }
+    
+    /**
+     * the items are moved in the background a chunk at a time, the cutoff is
+     * fixed when the job starts so that a resumed job archives the same items
+     * the documents of archived items are left in the index, searches that
+     * include archived items find them by text as well, see rebuildIndexes
+     */
+    public List<Job> bulkUpdateArchiveItems() {
+        List<Job> jobs = new ArrayList<Job>();
+        if (archiveAgeInDays == 0) {
+            return jobs;
+        }
+        for (Space space : dao.findAllSpaces()) {
+            Job job = new Job(Job.ARCHIVE_ITEMS, space);
+            job.setValue(archiveAgeInDays);
+            jobs.add(startJob(job, space));
+        }
+        return jobs;
     }
 
     public void removeItem(Item item) {
@@ -396,6 +754,8 @@ public class JtracImpl implements Jtrac {
             }
         }
         dao.removeItem(item);
+        itemCounts.remove(item);
+        removeFromIndexAfterCommit(Collections.singletonList(item.getId()));
     }
 
     public void removeItemItem(ItemItem itemItem) {
@@ -406,24 +766,31 @@ public class JtracImpl implements Jtrac {
         return dao.loadCountOfRecordsHavingFieldNotNull(space, field);
     }
 
-    public int bulkUpdateFieldToNull(Space space, Field field) {
-        return dao.bulkUpdateFieldToNull(space, field);
+    public Job bulkUpdateFieldToNull(Space space, Field field) {
+        Job job = new Job(Job.FIELD_TO_NULL, space);
+        job.setFieldName(field.getName().getText());
+        return startJob(job, space);
     }
 
     public int loadCountOfRecordsHavingFieldWithValue(Space space, Field field, int optionKey) {
         return dao.loadCountOfRecordsHavingFieldWithValue(space, field, optionKey);
     }
 
-    public int bulkUpdateFieldToNullForValue(Space space, Field field, int optionKey) {
-        return dao.bulkUpdateFieldToNullForValue(space, field, optionKey);
+    public Job bulkUpdateFieldToNullForValue(Space space, Field field, int optionKey) {
+        Job job = new Job(Job.FIELD_VALUE_TO_NULL, space);
+        job.setFieldName(field.getName().getText());
+        job.setValue(optionKey);
+        return startJob(job, space);
     }
 
     public int loadCountOfRecordsHavingStatus(Space space, int status) {
         return dao.loadCountOfRecordsHavingStatus(space, status);
     }
 
-    public int bulkUpdateStatusToOpen(Space space, int status) {
-        return dao.bulkUpdateStatusToOpen(space, status);
+    public Job bulkUpdateStatusToOpen(Space space, int status) {
+        Job job = new Job(Job.STATUS_TO_OPEN, space);
+        job.setValue(status);
+        return startJob(job, space);
     }
 
     public int bulkUpdateRenameSpaceRole(Space space, String oldRoleKey, String newRoleKey) {
@@ -463,7 +830,8 @@ public class JtracImpl implements Jtrac {
             // since this only happens only once on authentication and simplifies a lot of
             // code later because the security principal is "fully prepared",
             // this is hopefully pardonable.  The downside is that there may be as many extra db hits
-            // as there are spaces allocated for the user.  Hibernate caching should alleviate this
+            // as there are spaces allocated for the user.  Space and Metadata are in the
+            // Hibernate second-level cache (see jtrac.hbm.xml) which alleviates this
             usr.isAbleToCreateNewItem();
         }        
         return user;
@@ -498,9 +866,8 @@ public class JtracImpl implements Jtrac {
     }
 
     public void removeUser(User user) {
-        for(ItemUser iu : dao.findItemUsersByUser(user)) {            
-            dao.removeItemUser(iu);
-        }
+        dao.bulkUpdateDeleteItemUsersForUser(user);
+        dao.bulkUpdateDeleteUserSpaceRolesForUser(user);
         dao.removeUser(user);        
     }
 
@@ -609,15 +976,23 @@ public class JtracImpl implements Jtrac {
     public int loadCountOfHistoryInvolvingUser(User user) {
         return dao.loadCountOfHistoryInvolvingUser(user);
     }
+    
+    public int loadCountOfItemUsersInvolvingUser(User user) {
+        return dao.loadCountOfItemUsersInvolvingUser(user);
+    }
 
     //==========================================================================
 
     public CountsHolder loadCountsForUser(User user) {
-        return dao.loadCountsForUser(user);
+        return itemCounts.loadCountsForUser(user);
     }
 
     public Counts loadCountsForUserSpace(User user, Space space) {
-        return dao.loadCountsForUserSpace(user, space);
+        return itemCounts.loadCountsForUserSpace(user, space);
+    }
+    
+    public void clearCounts() {
+        itemCounts.clear();
     }
 
     //==========================================================================
@@ -708,12 +1083,182 @@ public class JtracImpl implements Jtrac {
         return notFullyAllocated;
     }
 
-    public void removeSpace(Space space) {
+    public Job removeSpace(Space space) {
         logger.info("proceeding to delete space: " + space);
+        // users lose access straight away, the items and the space itself go in the background
         dao.bulkUpdateDeleteSpaceRole(space, null);
-        dao.bulkUpdateDeleteItemsForSpace(space);
-        dao.removeSpace(space);
-        logger.info("successfully deleted space");
+        return startJob(new Job(Job.REMOVE_SPACE, space), space);
+    }
+
+    //==========================================================================
+
+    public Job loadJob(long id) {
+        return dao.loadJob(id);
+    }
+
+    public Set<String> findFieldNamesReservedByJobs(Space space) {
+        Set<String> fieldNames = new HashSet<String>();
+        for (Job job : findJobsForSpace(space)) {
+            if (job.getType() == Job.FIELD_TO_NULL) {
+                fieldNames.add(job.getFieldName());
+            }
+        }
+        return fieldNames;
+    }
+
+    public Set<String> findOptionKeysReservedByJobs(Space space, Field field) {
+        Set<String> keys = new HashSet<String>();
+        for (Job job : findJobsForSpace(space)) {
+            if (job.getType() == Job.FIELD_VALUE_TO_NULL 
+                    && job.getFieldName().equals(field.getName().getText())) {
+                keys.add(job.getValue() + "");
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * read from the primary database, a job started by the previous request
+     * may not have made it to a replica yet
+     */
+    private List<Job> findJobsForSpace(final Space space) {
+        if (space.getId() == 0) {
+            // not saved yet, so nothing to clear
+            return Collections.emptyList();
+        }
+        return (List<Job>) transactionTemplate.execute(new TransactionCallback() {
+            public Object doInTransaction(TransactionStatus status) {
+                return dao.findJobsForSpace(space.getId());
+            }
+        });
+    }
+
+    /**
+     * the job is stored as part of the current transaction
+     * and handed over to the background thread once that commits
+     */
+    private Job startJob(final Job job, Space space) {
+        job.setTotalSize(dao.loadCountOfItemsForSpace(space));
+        dao.storeJob(job);
+        logger.info("job created: " + job);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    submitJob(job.getId());
+                }
+            });
+        } else {
+            submitJob(job.getId());
+        }
+        return job;
+    }
+
+    private void submitJob(final long jobId) {
+        jobExecutor.execute(new Runnable() {
+            public void run() {
+                runJob(jobId);
+            }
+        });
+    }
+
+    private void runJob(final long jobId) {
+        try {
+            boolean done = false;
+            while (!done) {
+                if (Thread.currentThread().isInterrupted()) {
+                    logger.info("job stopped, will be resumed on the next startup: " + jobId);
+                    return;
+                }
+                done = (Boolean) transactionTemplate.execute(new TransactionCallback() {
+                    public Object doInTransaction(TransactionStatus status) {
+                        return runJobChunk(jobId);
+                    }
+                });
+            }
+            logger.info("job complete: " + jobId);
+        } catch (final Exception e) {
+            logger.error("job failed, will be resumed on the next startup: " + jobId, e);
+            try {
+                transactionTemplate.execute(new TransactionCallback() {
+                    public Object doInTransaction(TransactionStatus status) {
+                        Job job = dao.loadJob(jobId);
+                        if (job != null) {
+                            job.setErrorMessage(e.getMessage());
+                            dao.storeJob(job);
+                        }
+                        return null;
+                    }
+                });
+            } catch (Exception e2) {
+                logger.error("could not record job failure: " + jobId, e2);
+            }
+        }
+    }
+
+    /**
+     * does the next batch size items of the job, and stores how far it got
+     * returns true when there were none left and the job has been removed
+     */
+    private boolean runJobChunk(long jobId) {
+        Job job = dao.loadJob(jobId);
+        if (job == null) {
+            return true;
+        }
+        Space space = dao.loadSpace(job.getSpaceId());
+        List<Long> ids = space == null ? new ArrayList<Long>()
+                : dao.findItemIdsForSpace(space, job.getLastItemId(), job.getBatchSize());
+        if (ids.isEmpty()) {
+            if (job.getType() == Job.REMOVE_SPACE && space != null) {
+                dao.bulkUpdateDeleteArchivedItemsForSpace(space);
+                dao.removeSpace(space);
+                itemCounts.invalidate(space);
+                logger.info("successfully deleted space: " + space);
+            }
+            dao.removeJob(job);
+            return true;
+        }
+        long lastItemId = ids.get(ids.size() - 1);
+        switch (job.getType()) {
+            case Job.REMOVE_SPACE:
+                dao.bulkUpdateDeleteItemsForSpace(space, job.getLastItemId(), lastItemId);
+                itemCounts.invalidate(space);
+                removeFromIndexAfterCommit(ids);
+                break;
+            case Job.FIELD_TO_NULL:
+                dao.bulkUpdateFieldToNull(space, new Field(job.getFieldName()), job.getLastItemId(), lastItemId);
+                break;
+            case Job.FIELD_VALUE_TO_NULL:
+                dao.bulkUpdateFieldToNullForValue(space, new Field(job.getFieldName()), job.getValue(), 
+                        job.getLastItemId(), lastItemId);
+                break;
+            case Job.STATUS_TO_OPEN:
+                dao.bulkUpdateStatusToOpen(space, job.getValue(), job.getLastItemId(), lastItemId);
+                itemCounts.invalidate(space);
+                break;
+            case Job.HISTORY_TO_DELTAS:
+                final int[] count = new int[1];
+                dao.visitItems(new ItemVisitor() {
+                    public void visit(Item item) {
+                        count[0] += item.storeHistoryAsDeltas();
+                    }
+                }, job.getBatchSize(), space, job.getLastItemId(), lastItemId);
+                logger.debug("history entries converted to deltas: " + count[0]);
+                break;
+            case Job.ARCHIVE_ITEMS:
+                Date closedBefore = getArchiveCutoff(job.getTimeStamp(), job.getValue());
+                if (dao.bulkUpdateArchiveItems(space, closedBefore, job.getLastItemId(), lastItemId) > 0) {
+                    itemCounts.invalidate(space);
+                }
+                break;
+            default:
+                throw new RuntimeException("unknown job type: " + job);
+        }
+        job.setLastItemId(lastItemId);
+        job.setCurrentPosition(job.getCurrentPosition() + ids.size());
+        job.setErrorMessage(null);
+        dao.storeJob(job);
+        return false;
     }
 
     //==========================================================================
@@ -748,6 +1293,13 @@ public class JtracImpl implements Jtrac {
             initAttachmentMaxSize(config.getValue());
         } else if(config.isSessionTimeoutConfig()) {
             initSessionTimeout(config.getValue());
+        } else if(config.isHistoryConfig()) {
+            initHistoryDeltas(config.getValue());
+            if(historyDeltas) {
+                updateHistoryToDeltas();
+            }
+        } else if(config.isArchiveConfig()) {
+            initArchiveAge(config.getValue());
         }
     }
 
@@ -765,55 +1317,118 @@ public class JtracImpl implements Jtrac {
 
     //========================================================
 
-    public void rebuildIndexes(BatchInfo batchInfo) {
-        File file = new File(jtracHome + "/indexes");
-        for (File f : file.listFiles()) {
-            logger.debug("deleting file: " + f);
-            f.delete();
-        }        
-        logger.info("existing index files deleted successfully");
-        int totalSize = dao.loadCountOfAllItems();
-        batchInfo.setTotalSize(totalSize);
-        logger.info("total items to index: " + totalSize);                
-        int firstResult = 0;
-        long lastFetchedId = 0;
-        while(true) {
-            logger.info("processing batch starting from: " + firstResult + ", current: " + batchInfo.getCurrentPosition());
-            List<Item> items = dao.findAllItems(firstResult, batchInfo.getBatchSize());
-            for (Item item : items) {                                    
-                
-            	indexer.index(item);  
-                
-                // currently history is indexed separately from item
-                // not sure if this is a good thing, maybe it gives
-                // more flexibility e.g. fine-grained search results
-            	
-                int historyCount = 0;
-                for(History history : item.getHistory()) {
-                    indexer.index(history);
-                    historyCount++;
+    /**
+     * the items are split by id range across the index rebuild workers,
+     * each streams its range from the database in batches and writes a
+     * separate index part, the parts are merged into a new index at the end
+     * and swapped in by the indexer, the existing index serves searches
+     * (and takes changes) until then, archived items are included as they
+     * stay in the index when archived, see bulkUpdateArchiveItems
+     */
+    public void rebuildIndexes(final BatchInfo batchInfo) {
+        // before reading anything, changes from now on are replayed into the new index
+        indexer.startRebuild();
+        List<IndexPart> parts = new ArrayList<IndexPart>();
+        ExecutorService executor = null;
+        boolean swapped = false;
+        try {
+            // dashboard counts are reloaded from the database along with the indexes
+            itemCounts.clear();
+            int totalSize = dao.loadCountOfAllItems() + dao.loadCountOfArchivedItems();
+            batchInfo.setTotalSize(totalSize);
+            // from the primary, a lagging replica could leave out the newest items
+            long maxItemId = (Long) transactionTemplate.execute(new TransactionCallback() {
+                public Object doInTransaction(TransactionStatus status) {
+                    return dao.loadMaxItemId();
                 }
-                if(logger.isDebugEnabled()) {
-                    logger.debug("indexed item: " + item.getId() 
-                            + " : " + item.getRefId() + ", history: " + historyCount);
+            });
+            int workers = (int) Math.max(1, Math.min(indexRebuildWorkers, maxItemId));
+            long rangeSize = (maxItemId + workers - 1) / workers;
+            logger.info("total items to index: " + totalSize + ", workers: " + workers);
+            batchInfo.setWorkerCount(workers);
+            executor = Executors.newFixedThreadPool(workers);
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(workers);
+            for (int i = 0; i < workers; i++) {
+                IndexPart part = indexer.createPart(i);
+                parts.add(part);
+                long afterItemId = i * rangeSize;
+                long lastItemId = Math.min(afterItemId + rangeSize, maxItemId);
+                futures.add(executor.submit(new IndexRebuildWorker(part, i, afterItemId, lastItemId, batchInfo)));
+            }
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+            indexer.finishRebuild(parts);
+            swapped = true;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("index rebuild failed: " + e.getCause(), e.getCause());
+        } catch (Exception e) {
+            throw new RuntimeException("index rebuild failed: " + e, e);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (!swapped) {
+                for (IndexPart part : parts) {
+                    part.delete();
                 }
-                batchInfo.incrementPosition();
-                lastFetchedId = item.getId();
-            }                        
-            if(logger.isDebugEnabled()) {
-              logger.debug("size of current batch: " + items.size());
-              logger.debug("last fetched Id: " + lastFetchedId);
-            }  
-            firstResult += batchInfo.getBatchSize();
-            if(logger.isDebugEnabled()) {
-                logger.debug("setting firstResult to: " + firstResult);
-            }
-            if(batchInfo.isComplete()) {
-                logger.info("batch completed at position: " + batchInfo.getCurrentPosition());
-                break;
+                indexer.abortRebuild();
             }
-        }        
-        
+        }
+        logger.info("batch completed at position: " + batchInfo.getCurrentPosition());
+    }
+
+    /**
+     * indexes one id range of items into its own part, in a transaction of
+     * its own that is not read only, so that it always reads the primary
+     * database: changes queued for indexing before startRebuild are not
+     * replayed, so they have to be seen here, and a replica may lag behind
+     */
+    private class IndexRebuildWorker implements Callable<Object> {
+
+        private final IndexPart part;
+        private final int worker;
+        private final long afterItemId;
+        private final long lastItemId;
+        private final BatchInfo batchInfo;
+
+        IndexRebuildWorker(IndexPart part, int worker, long afterItemId, long lastItemId, BatchInfo batchInfo) {
+            this.part = part;
+            this.worker = worker;
+            this.afterItemId = afterItemId;
+            this.lastItemId = lastItemId;
+            this.batchInfo = batchInfo;
+        }
+
+        public Object call() throws Exception {
+            try {
+                transactionTemplate.execute(new TransactionCallback() {
+                    public Object doInTransaction(TransactionStatus status) {
+                        ItemVisitor visitor = new ItemVisitor() {
+                            public void visit(Item item) {
+                                part.add(item);
+                                // currently history is indexed separately from item
+                                // not sure if this is a good thing, maybe it gives
+                                // more flexibility e.g. fine-grained search results
+                                for(History history : item.getHistory()) {
+                                    part.add(history);
+                                }
+                                batchInfo.incrementPosition(worker);
+                            }
+                        };
+                        dao.visitItems(visitor, batchInfo.getBatchSize(), afterItemId, lastItemId);
+                        dao.visitArchivedItems(visitor, batchInfo.getBatchSize(), afterItemId, lastItemId);
+                        return null;
+                    }
+                });
+            } finally {
+                part.close();
+            }
+            logger.info("index rebuild worker " + worker + " done, items " + afterItemId + " to " + lastItemId
+                    + ": " + batchInfo.getWorkerPosition(worker) + " items, " + part.getCount() + " documents");
+            return null;
+        }
+
     }
 
     public boolean validateTextSearchQuery(String text) {
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.jtrac.config;
+
+import java.util.Arrays;
+import org.apache.commons.dbcp.BasicDataSource;
+
+/**
+ * live figures for the database connection pool, exposed over JMX.
+ * Borrow wait times are kept for the last SAMPLES connections handed out,
+ * the counts are since startup or the last reset().  Everything is zero
+ * if the connections do not come from a pool (JNDI or the single
+ * connection used for embedded HSQLDB)
+ */
+public class ConnectionPoolStatistics {
+    
+    private static final int SAMPLES = 1024;
+    
+    private BasicDataSource dataSource;
+    
+    // ring buffer of the most recent borrow waits in nanoseconds
+    private final long[] waits = new long[SAMPLES];
+    private int next;
+    private int size;
+    
+    private long borrowCount;
+    private long timeoutCount;
+    
+    void setDataSource(BasicDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+    
+    synchronized void borrowed(long waitNanos) {
+        borrowCount++;
+        waits[next] = waitNanos;
+        next = (next + 1) % SAMPLES;
+        if (size < SAMPLES) {
+            size++;
+        }
+    }
+    
+    synchronized void timedOut() {
+        timeoutCount++;
+    }
+    
+    public synchronized void reset() {
+        next = 0;
+        size = 0;
+        borrowCount = 0;
+        timeoutCount = 0;
+    }
+    
+    public int getNumActive() {
+        return dataSource == null ? 0 : dataSource.getNumActive();
+    }
+    
+    public int getNumIdle() {
+        return dataSource == null ? 0 : dataSource.getNumIdle();
+    }
+    
+    public int getMaxActive() {
+        return dataSource == null ? 0 : dataSource.getMaxActive();
+    }
+    
+    public synchronized long getBorrowCount() {
+        return borrowCount;
+    }
+    
+    public synchronized long getTimeoutCount() {
+        return timeoutCount;
+    }
+    
+    public double getBorrowWaitMillisMedian() {
+        return getBorrowWaitMillis(50);
+    }
+    
+    public double getBorrowWaitMillis95thPercentile() {
+        return getBorrowWaitMillis(95);
+    }
+    
+    public double getBorrowWaitMillis99thPercentile() {
+        return getBorrowWaitMillis(99);
+    }
+    
+    public double getBorrowWaitMillisMax() {
+        return getBorrowWaitMillis(100);
+    }
+    
+    private double getBorrowWaitMillis(int percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (size == 0) {
+                return 0;
+            }
+            sorted = new long[size];
+            System.arraycopy(waits, 0, sorted, 0, size);
+        }
+        Arrays.sort(sorted);
+        // nearest rank
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1000000.0;
+    }
+    
+}
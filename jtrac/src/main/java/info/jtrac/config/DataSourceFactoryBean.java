@@ -43,6 +43,20 @@ import org.springframework.util.StringUtils;
  *    <li>Java Naming and Directory Interface (JNDI); supported by most JDBC
  *    database drivers</li>
  * </ul>
+ * 
+ * <p>
+ * If a replica URL is configured, the data source returned is a
+ * {@link ReplicaRoutingDataSource} that sends read only transactions to an
+ * Apache DBCP pool for the replica and everything else to the data source
+ * above.
+ * </p>
+ * 
+ * <p>
+ * Apache DBCP pools are sized and cache prepared statements as configured,
+ * and report borrow waits and timeouts to the {@link ConnectionPoolStatistics}
+ * returned by {@link #getStatistics()}.  Embedded HSQLDB can be pooled as well
+ * so that concurrent readers do not queue up for the single connection.
+ * </p>
  */
 public class DataSourceFactoryBean implements FactoryBean, DisposableBean {
     /**
@@ -80,6 +94,69 @@ public class DataSourceFactoryBean implements FactoryBean, DisposableBean {
      */
     private String dataSourceJndiName;
     
+    /**
+     * Read only replica DB url, empty if there is no replica
+     */
+    private String replicaUrl;
+    
+    /**
+     * Replica DB user, the DB user is used if empty
+     */
+    private String replicaUsername;
+    
+    /**
+     * Replica DB password, used along with the replica DB user
+     */
+    private String replicaPassword;
+    
+    /**
+     * Seconds that reads stay on the primary DB after a user commits
+     */
+    private int replicaStickySeconds;
+    
+    /**
+     * Maximum number of connections in the pool
+     */
+    private int maxActive = 8;
+    
+    /**
+     * Maximum number of idle connections kept in the pool
+     */
+    private int maxIdle = 8;
+    
+    /**
+     * Minimum number of idle connections kept in the pool
+     */
+    private int minIdle;
+    
+    /**
+     * Milliseconds to wait for a free connection before failing, -1 waits
+     * for ever
+     */
+    private long maxWait = -1;
+    
+    /**
+     * Whether prepared statements are cached per pooled connection
+     */
+    private boolean poolPreparedStatements;
+    
+    /**
+     * Maximum number of cached prepared statements per connection, -1 for
+     * no limit
+     */
+    private int maxOpenPreparedStatements = -1;
+    
+    /**
+     * Whether embedded HSQLDB uses a connection pool instead of one
+     * shared connection
+     */
+    private boolean embeddedPooled;
+    
+    /**
+     * Figures for the (primary) connection pool
+     */
+    private final ConnectionPoolStatistics statistics = new ConnectionPoolStatistics();
+    
     /**
      * DB JNDI data source object
      */
@@ -141,6 +218,118 @@ public class DataSourceFactoryBean implements FactoryBean, DisposableBean {
         this.dataSourceJndiName = dataSourceJndiName;
     }
     
+    /**
+     * This method allows to store the url of a read only replica of the DB.
+     * 
+     * @param replicaUrl The replica DB url, empty for no replica.
+     */
+    public void setReplicaUrl(String replicaUrl) {
+        this.replicaUrl = replicaUrl;
+    }
+    
+    /**
+     * This method allows to store the replica DB user.
+     * 
+     * @param replicaUsername The replica DB user, empty to use the DB user.
+     */
+    public void setReplicaUsername(String replicaUsername) {
+        this.replicaUsername = replicaUsername;
+    }
+    
+    /**
+     * This method allows to store the replica DB password.
+     * 
+     * @param replicaPassword The replica DB password.
+     */
+    public void setReplicaPassword(String replicaPassword) {
+        this.replicaPassword = replicaPassword;
+    }
+    
+    /**
+     * This method allows to store how long reads of a user stay on the
+     * primary DB after that user committed a change, so that changes not
+     * yet replicated are not missed.
+     * 
+     * @param replicaStickySeconds The number of seconds, 0 to switch off.
+     */
+    public void setReplicaStickySeconds(int replicaStickySeconds) {
+        this.replicaStickySeconds = replicaStickySeconds;
+    }
+    
+    /**
+     * This method allows to store the maximum number of pooled connections.
+     * 
+     * @param maxActive The maximum number of connections.
+     */
+    public void setMaxActive(int maxActive) {
+        this.maxActive = maxActive;
+    }
+    
+    /**
+     * This method allows to store the maximum number of idle connections.
+     * 
+     * @param maxIdle The maximum number of idle connections.
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+    
+    /**
+     * This method allows to store the minimum number of idle connections.
+     * 
+     * @param minIdle The minimum number of idle connections.
+     */
+    public void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+    
+    /**
+     * This method allows to store how long to wait for a free connection.
+     * 
+     * @param maxWait The time in milliseconds, -1 to wait for ever.
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+    
+    /**
+     * This method allows to switch on caching of prepared statements.
+     * 
+     * @param poolPreparedStatements Whether prepared statements are cached.
+     */
+    public void setPoolPreparedStatements(boolean poolPreparedStatements) {
+        this.poolPreparedStatements = poolPreparedStatements;
+    }
+    
+    /**
+     * This method allows to store the size of the prepared statement cache.
+     * 
+     * @param maxOpenPreparedStatements The maximum number of cached
+     * statements per connection, -1 for no limit.
+     */
+    public void setMaxOpenPreparedStatements(int maxOpenPreparedStatements) {
+        this.maxOpenPreparedStatements = maxOpenPreparedStatements;
+    }
+    
+    /**
+     * This method allows to use a connection pool for embedded HSQLDB.
+     * 
+     * @param embeddedPooled Whether embedded HSQLDB is pooled.
+     */
+    public void setEmbeddedPooled(boolean embeddedPooled) {
+        this.embeddedPooled = embeddedPooled;
+    }
+    
+    /**
+     * This method returns the live figures of the connection pool, all zero
+     * if the connections are not pooled.
+     * 
+     * @return The connection pool statistics.
+     */
+    public ConnectionPoolStatistics getStatistics() {
+        return statistics;
+    }
+    
     /**
      * This method returns the dataSource object used for the DB access.
      * 
@@ -166,7 +355,7 @@ public class DataSourceFactoryBean implements FactoryBean, DisposableBean {
             } // end try..catch
             
             dataSource = (DataSource) factoryBean.getObject();
-        } else if(url.startsWith("jdbc:hsqldb:file")) {
+        } else if(url.startsWith("jdbc:hsqldb:file") && !embeddedPooled) {
             logger.info("embedded HSQLDB mode detected, switching on spring single connection data source");
             SingleConnectionDataSource ds = new SingleConnectionDataSource();
             ds.setUrl(url);
@@ -177,21 +366,52 @@ public class DataSourceFactoryBean implements FactoryBean, DisposableBean {
             dataSource = ds;
         } else {
             logger.info("Not using embedded HSQLDB or JNDI datasource, switching on Apache DBCP data source connection pooling");
-            BasicDataSource ds = new BasicDataSource();
-            ds.setUrl(url);
-            ds.setDriverClassName(driverClassName);
-            ds.setUsername(username);
-            ds.setPassword(password);
-            ds.setValidationQuery(validationQuery);
-            ds.setTestOnBorrow(false);
-            ds.setTestWhileIdle(true);
-            ds.setTimeBetweenEvictionRunsMillis(600000);
-            dataSource = ds;
+            dataSource = createPool(url, username, password, statistics);
         } // end if..else
         
+        if(StringUtils.hasText(replicaUrl)) {
+            logger.info("replica url configured, read only transactions will use: '" + replicaUrl + "'");
+            DataSource replica = StringUtils.hasText(replicaUsername)
+                    ? createPool(replicaUrl, replicaUsername, replicaPassword, new ConnectionPoolStatistics())
+                    : createPool(replicaUrl, username, password, new ConnectionPoolStatistics());
+            ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(dataSource, replica);
+            routing.setStickySeconds(replicaStickySeconds);
+            dataSource = routing;
+        }
+        
         return dataSource;
     }
     
+    /**
+     * This method creates an Apache DBCP connection pool.
+     * 
+     * @param url The DB url.
+     * @param username The DB user.
+     * @param password The DB password.
+     * @param statistics Where the pool reports borrow waits and timeouts.
+     * @return The pooled data source.
+     */
+    private BasicDataSource createPool(String url, String username, String password, ConnectionPoolStatistics statistics) {
+        logger.info("connection pool maxActive: " + maxActive + ", maxWait: " + maxWait
+                + ", poolPreparedStatements: " + poolPreparedStatements);
+        BasicDataSource ds = new PooledDataSource(statistics);
+        ds.setUrl(url);
+        ds.setDriverClassName(driverClassName);
+        ds.setUsername(username);
+        ds.setPassword(password);
+        ds.setValidationQuery(validationQuery);
+        ds.setTestOnBorrow(false);
+        ds.setTestWhileIdle(true);
+        ds.setTimeBetweenEvictionRunsMillis(600000);
+        ds.setMaxActive(maxActive);
+        ds.setMaxIdle(maxIdle);
+        ds.setMinIdle(minIdle);
+        ds.setMaxWait(maxWait);
+        ds.setPoolPreparedStatements(poolPreparedStatements);
+        ds.setMaxOpenPreparedStatements(maxOpenPreparedStatements);
+        return ds;
+    }
+    
     /**
      * This method returns the class name of the DataSource object which can be
      * used to determine which data source implementation is currently used.
@@ -222,15 +442,22 @@ public class DataSourceFactoryBean implements FactoryBean, DisposableBean {
      * @see org.springframework.beans.factory.DisposableBean#destroy()
      */
     public void destroy() throws Exception {
+        if(dataSource instanceof ReplicaRoutingDataSource) {
+            ReplicaRoutingDataSource routing = (ReplicaRoutingDataSource) dataSource;
+            destroy(routing.getReplica());
+            destroy(routing.getPrimary());
+        } else {
+            destroy(dataSource);
+        }
+    }
+    
+    private void destroy(DataSource dataSource) throws Exception {
         if(dataSource instanceof SingleConnectionDataSource) {
-            logger.info("attempting to shut down embedded HSQLDB database");
-            Connection con = dataSource.getConnection();
-            Statement stmt = con.createStatement();
-            stmt.executeUpdate("SHUTDOWN");
-            stmt.close();
-            con.close();
-            logger.info("embedded HSQLDB database shut down successfully");
+            shutdownEmbedded(dataSource);
         } else if (dataSource instanceof BasicDataSource){
+            if(((BasicDataSource) dataSource).getUrl().startsWith("jdbc:hsqldb:file")) {
+                shutdownEmbedded(dataSource);
+            }
             logger.info("attempting to close Apache DBCP data source");
             ((BasicDataSource) dataSource).close();
             logger.info("Apache DBCP data source closed successfully");
@@ -238,4 +465,14 @@ public class DataSourceFactoryBean implements FactoryBean, DisposableBean {
             logger.info("context shutting down for JNDI datasource");
         } // end if..else
     }
+    
+    private void shutdownEmbedded(DataSource dataSource) throws Exception {
+        logger.info("attempting to shut down embedded HSQLDB database");
+        Connection con = dataSource.getConnection();
+        Statement stmt = con.createStatement();
+        stmt.executeUpdate("SHUTDOWN");
+        stmt.close();
+        con.close();
+        logger.info("embedded HSQLDB database shut down successfully");
+    }
 }
@@ -67,6 +67,8 @@ import org.springframework.web.context.ServletContextAware;
  *     <ul>
  *       <li>switches between embedded HSQLDB or Apache DBCP (connection pool)</li>
  *       <li>performs graceful shutdown of database if embedded HSQLDB</li>
+ *       <li>routes read only transactions to a replica database if configured</li>
+ *       <li>sizes the connection pool and collects its statistics</li>
  *     </ul>
  *   <li>ProviderManagerFactoryBean</li>
  *     <ul>
@@ -222,6 +224,30 @@ public class JtracConfigurer extends PropertyPlaceholderConfigurer implements Se
         props.setProperty("ldap.activeDirectoryDomain", "");
         props.setProperty("ldap.searchBase", "");
         props.setProperty("database.datasource.jndiname", "");
+        props.setProperty("database.sequenceBlockSize", "1");
+        props.setProperty("hibernate.generate_statistics", "false");
+        props.setProperty("hibernate.jdbc.batch_size", "50");
+        props.setProperty("database.pool.maxActive", "8");
+        props.setProperty("database.pool.maxIdle", "8");
+        props.setProperty("database.pool.minIdle", "0");
+        props.setProperty("database.pool.maxWait", "30000");
+        props.setProperty("database.pool.poolPreparedStatements", "true");
+        props.setProperty("database.pool.maxOpenPreparedStatements", "100");
+        props.setProperty("database.pool.embedded", "false");
+        props.setProperty("database.replica.url", "");
+        props.setProperty("database.replica.username", "");
+        props.setProperty("database.replica.password", "");
+        props.setProperty("database.replica.stickySeconds", "0");
+        // threads used to rebuild the full text index, each indexes a range of items
+        props.setProperty("index.rebuild.workers", Runtime.getRuntime().availableProcessors() + "");
+        // with a replica, which database a connection comes from is decided per transaction
+        // so hibernate has to give it back after each one instead of holding on to it
+        String replicaUrl = loadProps(propsFile).getProperty("database.replica.url");
+        if (replicaUrl != null && replicaUrl.trim().length() > 0) {
+            props.setProperty("hibernate.connection.release_mode", "after_transaction");
+        } else {
+            props.setProperty("hibernate.connection.release_mode", "on_close");
+        }
         // set default properties that can be overridden by user if required
         setProperties(props);
         // finally set the property that spring is expecting, manually
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.jtrac.config;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.NoSuchElementException;
+import org.apache.commons.dbcp.BasicDataSource;
+
+/**
+ * Apache DBCP data source that records how long each connection took to
+ * borrow from the pool and how often that timed out, see
+ * ConnectionPoolStatistics
+ */
+public class PooledDataSource extends BasicDataSource {
+    
+    private final ConnectionPoolStatistics statistics;
+    
+    public PooledDataSource(ConnectionPoolStatistics statistics) {
+        this.statistics = statistics;
+        statistics.setDataSource(this);
+    }
+    
+    public ConnectionPoolStatistics getStatistics() {
+        return statistics;
+    }
+    
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            Connection con = super.getConnection();
+            statistics.borrowed(System.nanoTime() - start);
+            return con;
+        } catch (SQLException e) {
+            // DBCP wraps the pool running out of connections within maxWait like this
+            if (e.getCause() instanceof NoSuchElementException) {
+                statistics.timedOut();
+            }
+            throw e;
+        }
+    }
+    
+    // JDBC 4, not declared by the DBCP base class
+    
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+    
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (!iface.isInstance(this)) {
+            throw new SQLException("not a wrapper for " + iface.getName());
+        }
+        return iface.cast(this);
+    }
+    
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("getParentLogger");
+    }
+    
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.jtrac.config;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.sql.DataSource;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.acegisecurity.providers.anonymous.AnonymousAuthenticationToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * <p>
+ * DataSource that hands out connections from a read only replica of the
+ * database when asked for within a read only transaction, i.e. the
+ * <code>PROPAGATION_SUPPORTS,readOnly</code> methods of the service layer,
+ * and from the primary database for everything else.
+ * </p>
+ *
+ * <p>
+ * The decision is made when the connection is obtained, so Hibernate has to
+ * give connections back at the end of each transaction for this to work
+ * within the long lived "open session in view" session, see the
+ * <code>hibernate.connection.release_mode</code> set up by JtracConfigurer.
+ * </p>
+ *
+ * <ul>
+ *   <li>if a replica connection cannot be obtained, the primary is used
+ *   instead and the replica is not tried again for a while</li>
+ *   <li>optionally, once a user has committed something, reads for that user
+ *   stay on the primary for a few seconds so that replication lag does not
+ *   hide what was just saved (read your writes)</li>
+ * </ul>
+ */
+public class ReplicaRoutingDataSource extends AbstractDataSource {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final DataSource primary;
+    private final DataSource replica;
+
+    private long stickyMillis;
+    private long retryMillis = 30000;
+
+    // replica not tried again before this time after a failure
+    private volatile long replicaDownUntil;
+
+    // user name -> time of the last commit on the primary
+    private final Map<String, Long> lastWrites = new ConcurrentHashMap<String, Long>();
+
+    public ReplicaRoutingDataSource(DataSource primary, DataSource replica) {
+        this.primary = primary;
+        this.replica = replica;
+    }
+
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    public DataSource getReplica() {
+        return replica;
+    }
+
+    /**
+     * @param stickySeconds how long reads go to the primary after the
+     * same user committed something, 0 (the default) switches this off
+     */
+    public void setStickySeconds(int stickySeconds) {
+        this.stickyMillis = stickySeconds * 1000L;
+    }
+
+    /**
+     * @param retrySeconds how long to wait before trying the replica again
+     * after it could not be connected to
+     */
+    public void setRetrySeconds(int retrySeconds) {
+        this.retryMillis = retrySeconds * 1000L;
+    }
+
+    public Connection getConnection() throws SQLException {
+        if (isReplicaRead()) {
+            try {
+                return replica.getConnection();
+            } catch (SQLException e) {
+                replicaDown(e);
+            }
+        }
+        return trackWrites(primary.getConnection());
+    }
+
+    public Connection getConnection(String username, String password) throws SQLException {
+        if (isReplicaRead()) {
+            try {
+                return replica.getConnection(username, password);
+            } catch (SQLException e) {
+                replicaDown(e);
+            }
+        }
+        return trackWrites(primary.getConnection(username, password));
+    }
+
+    // JDBC 4.1, not declared by the Spring base class
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("getParentLogger");
+    }
+
+    private boolean isReplicaRead() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now < replicaDownUntil) {
+            return false;
+        }
+        if (stickyMillis > 0) {
+            String key = getSessionKey();
+            if (key != null) {
+                Long lastWrite = lastWrites.get(key);
+                if (lastWrite != null) {
+                    if (now - lastWrite < stickyMillis) {
+                        return false;
+                    }
+                    lastWrites.remove(key);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void replicaDown(SQLException e) {
+        logger.warn("replica database not available, using primary for the next "
+                + retryMillis / 1000 + " seconds: " + e.getMessage());
+        replicaDownUntil = System.currentTimeMillis() + retryMillis;
+    }
+
+    /**
+     * the key that read your writes is tracked by, acegi keeps the logged in
+     * user in the http session so this amounts to one entry per user session,
+     * null if nobody is logged in (e.g. background jobs)
+     */
+    protected String getSessionKey() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null || authentication instanceof AnonymousAuthenticationToken) {
+            return null;
+        }
+        return authentication.getName();
+    }
+
+    /**
+     * wraps primary connections so that a commit made on behalf of a logged
+     * in user keeps that user's reads on the primary for a while
+     */
+    private Connection trackWrites(final Connection con) {
+        if (stickyMillis <= 0) {
+            return con;
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[] { Connection.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("equals")) {
+                            return proxy == args[0];
+                        } else if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        Object result;
+                        try {
+                            result = method.invoke(con, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getTargetException();
+                        }
+                        if (name.equals("commit")) {
+                            String key = getSessionKey();
+                            if (key != null) {
+                                lastWrites.put(key, System.currentTimeMillis());
+                            }
+                        }
+                        return result;
+                    }
+                });
+    }
+
+}
@@ -31,15 +31,44 @@ public class BatchInfo implements Serializable {
     private int batchSize = BATCH_SIZE;  
     private int totalSize;
     private int currentPosition;
+    // progress per worker when the batch is split across threads
+    private int[] workerPositions = new int[0];
+    private long workersStarted;
 
-    public boolean isComplete() {
+    public synchronized boolean isComplete() {
         return currentPosition >= totalSize;
     }
     
-    public void incrementPosition() {
+    public synchronized void incrementPosition() {
         currentPosition++;
     }
     
+    public synchronized void incrementPosition(int worker) {
+        currentPosition++;
+        workerPositions[worker]++;
+    }
+    
+    public synchronized void setWorkerCount(int workerCount) {
+        workerPositions = new int[workerCount];
+        workersStarted = System.currentTimeMillis();
+    }
+    
+    public synchronized int getWorkerCount() {
+        return workerPositions.length;
+    }
+    
+    public synchronized int getWorkerPosition(int worker) {
+        return workerPositions[worker];
+    }
+    
+    /**
+     * items per second done by one worker since the workers were started
+     */
+    public synchronized int getWorkerThroughput(int worker) {
+        long elapsed = System.currentTimeMillis() - workersStarted;
+        return elapsed <= 0 ? 0 : (int) (workerPositions[worker] * 1000L / elapsed);
+    }
+    
     public int getBatchSize() {
         return batchSize;
     }
@@ -48,11 +77,11 @@ public class BatchInfo implements Serializable {
         this.batchSize = batchSize;
     }
 
-    public int getCurrentPosition() {
+    public synchronized int getCurrentPosition() {
         return currentPosition;
     }
 
-    public void setCurrentPosition(int currentPosition) {
+    public synchronized void setCurrentPosition(int currentPosition) {
         this.currentPosition = currentPosition;
     }
 
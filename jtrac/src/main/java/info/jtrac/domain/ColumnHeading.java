@@ -31,6 +31,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import org.apache.wicket.MarkupContainer;
 import org.apache.wicket.markup.html.WebMarkupContainer;
 import org.apache.wicket.markup.html.form.IChoiceRenderer;
@@ -448,7 +449,7 @@ public class ColumnHeading implements Serializable {
                         Fragment getFilterUiFragment(MarkupContainer container, User user, Space space, Jtrac jtrac) {
                             Fragment fragment = new Fragment("fragParent", "multiSelect", container); 
                             // status selectable only when context space is not null
-                            final Map<Integer, String> options = space.getMetadata().getStatesMap();
+                            final Map<Integer, String> options = new TreeMap<Integer, String>(space.getMetadata().getStatesMap());
                             options.remove(State.NEW);
                             JtracCheckBoxMultipleChoice choice = new JtracCheckBoxMultipleChoice("values", new ArrayList(options.keySet()), new IChoiceRenderer() {
                                 public Object getDisplayValue(Object o) {
@@ -51,6 +51,8 @@ public class Config implements Serializable {
         PARAMS.add("locale.default");
         PARAMS.add("session.timeout");
         PARAMS.add("attachment.maxsize");
+        PARAMS.add("history.deltas");
+        PARAMS.add("archive.days");
     }
     
     public static Set<String> getParams() {
@@ -82,6 +84,14 @@ public class Config implements Serializable {
         return param.startsWith("locale.");
     }
     
+    public boolean isHistoryConfig() {
+        return param.startsWith("history.");
+    }
+    
+    public boolean isArchiveConfig() {
+        return param.startsWith("archive.");
+    }
+    
     //==========================================================================
     
     public String getParam() {
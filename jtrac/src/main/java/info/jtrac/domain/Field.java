@@ -21,6 +21,8 @@ import static info.jtrac.Constants.*;
 import info.jtrac.util.XmlUtils;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -195,14 +197,28 @@ public class Field implements Serializable {
     }
     
     public void addOption(String value) {
-        if (options == null) {
-            addOption("1", value);
-            return;
-        }
+        addOption(value, Collections.<String>emptySet());
+    }
+    
+    /**
+     * reserved are the keys of removed options whose values are still being
+     * cleared by a background job, see Job.FIELD_VALUE_TO_NULL, a new option
+     * with the same key meanwhile would have its values wiped
+     */
+    public void addOption(String value, Collection<String> reservedKeys) {
         Set<Integer> set = new TreeSet<Integer>();
-        for (String s : options.keySet()) {
+        if (options != null) {
+            for (String s : options.keySet()) {
+                set.add(new Integer(s));
+            }
+        }
+        for (String s : reservedKeys) {
             set.add(new Integer(s));
         }
+        if (set.isEmpty()) {
+            addOption("1", value);
+            return;
+        }
         int last = set.toArray(new Integer[set.size()])[set.size() -1];
         addOption(last + 1 + "", value);             
     }
@@ -245,7 +261,13 @@ public class Field implements Serializable {
     }
     
     public Field getClone() {
-        return new Field(getAsElement());
+        Field f = new Field(name);
+        f.label = label;
+        f.optional = optional;
+        if (options != null) {
+            f.options = new LinkedHashMap<String, String>(options);
+        }
+        return f;
     }
     
     public void initOptions() {
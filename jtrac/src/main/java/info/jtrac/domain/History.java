@@ -16,6 +16,7 @@
 
 package info.jtrac.domain;
 
+import java.util.Date;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field.Index;
 import org.apache.lucene.document.Field.Store;
@@ -25,13 +26,28 @@ import org.apache.lucene.document.Field.Store;
  * the item to be stored in the History table.
  * In this way for each Item, a History view is available which
  * shows the diffs, who made changes and when, etc.
+ * 
+ * When history is stored as deltas (see the "history.deltas" config) the
+ * entries after the first one only hold the summary, detail, planned effort
+ * and custom field values that changed, changedFields says which ones.
+ * Entries without changedFields hold whatever was entered, null meaning
+ * unchanged.  Item.getHistoryStates() rebuilds the full state either way.
  */
 public class History extends AbstractItem {
     
+    // bits in changedFields, the custom fields use the bit of their ordinal
+    // so new Field.Name values must only ever be added at the end
+    private static final long SUMMARY = 1L << 60;
+    private static final long DETAIL = 1L << 61;
+    private static final long PLANNED_EFFORT = 1L << 62;
+    
     private Integer type;
     private String comment;
     private Double actualEffort;
     private Attachment attachment;
+    private Long changedFields;
+    // not mapped, set when loaded as a row of a history search
+    private Integer index;
 
     public History() {
         // zero arg constructor
@@ -42,7 +58,7 @@ public class History extends AbstractItem {
      * and b) to create snapshot of item when editing item in which case
      * the status, loggedBy and assignedTo fields are additionally tweaked
      */
-    public History(Item item) {
+    public History(AbstractItem item) {
         setStatus(item.getStatus());
         setSummary(item.getSummary());
         setDetail(item.getDetail());
@@ -62,8 +78,10 @@ public class History extends AbstractItem {
     public Document createDocument() {
         Document d = new Document();
         d.add(new org.apache.lucene.document.Field("id", getId() + "", Store.YES, Index.NO));
-        d.add(new org.apache.lucene.document.Field("itemId", getParent().getId() + "", Store.YES, Index.NO));
+        // the item id is indexed too, so that the indexer can drop all history of a deleted item
+        d.add(new org.apache.lucene.document.Field("itemId", getParent().getId() + "", Store.YES, Index.UN_TOKENIZED));
         d.add(new org.apache.lucene.document.Field("type", "history", Store.YES, Index.NO));
+        d.add(new org.apache.lucene.document.Field("key", "history:" + getId(), Store.YES, Index.UN_TOKENIZED));
         StringBuffer sb = new StringBuffer();
         if (getSummary() != null) {
             sb.append(getSummary());
@@ -95,16 +113,120 @@ public class History extends AbstractItem {
     }                
     
     public int getIndex() {
-        int index = 0;
+        if (index != null) {
+            return index;
+        }
+        int i = 0;
         for(History h : getParent().getHistory()) {
             if (getId() == h.getId()) {
-                return index;
+                return i;
             }
-            index++;
+            i++;
         }
         return -1;
     }
     
+    public void setIndex(int index) {
+        this.index = index;
+    }
+    
+    public boolean isDelta() {
+        return changedFields != null;
+    }
+    
+    public boolean isChanged(Field.Name fieldName) {
+        return isChanged(1L << fieldName.ordinal());
+    }
+    
+    private boolean isChanged(long bit) {
+        return (changedFields & bit) != 0;
+    }
+    
+    /**
+     * turns this entry into a delta, the values that are the same before
+     * and after are dropped and the others are set to the value after
+     */
+    public void storeChanges(AbstractItem before, AbstractItem after) {
+        long changes = 0;
+        if (isDifferent(before.getSummary(), after.getSummary())) {
+            changes |= SUMMARY;
+        }
+        setSummary((changes & SUMMARY) != 0 ? after.getSummary() : null);
+        if (isDifferent(before.getDetail(), after.getDetail())) {
+            changes |= DETAIL;
+        }
+        setDetail((changes & DETAIL) != 0 ? after.getDetail() : null);
+        if (isDifferent(before.getPlannedEffort(), after.getPlannedEffort())) {
+            changes |= PLANNED_EFFORT;
+        }
+        setPlannedEffort((changes & PLANNED_EFFORT) != 0 ? after.getPlannedEffort() : null);
+        for(Field.Name fieldName : Field.Name.values()) {
+            Object value = after.getValue(fieldName);
+            if (isDifferent(before.getValue(fieldName), value)) {
+                changes |= 1L << fieldName.ordinal();
+            } else {
+                value = null;
+            }
+            setValue(fieldName, value);
+        }
+        changedFields = changes;
+    }
+    
+    /**
+     * applies what this entry recorded to the state of the item before it
+     * which gives the state after it, first is true for the first entry
+     * of the item that starts off from nothing
+     */
+    public void applyTo(AbstractItem state, boolean first) {
+        if (first || getStatus() != null) {
+            state.setStatus(getStatus());
+            state.setAssignedTo(getAssignedTo()); // may be null, when closing
+        }
+        if (isDelta()) {
+            if (isChanged(SUMMARY)) {
+                state.setSummary(getSummary());
+            }
+            if (isChanged(DETAIL)) {
+                state.setDetail(getDetail());
+            }
+            if (isChanged(PLANNED_EFFORT)) {
+                state.setPlannedEffort(getPlannedEffort());
+            }
+            for(Field.Name fieldName : Field.Name.values()) {
+                if (isChanged(fieldName)) {
+                    state.setValue(fieldName, getValue(fieldName));
+                }
+            }
+            return;
+        }
+        if (first || getSummary() != null) {
+            state.setSummary(getSummary());
+        }
+        if (first || getDetail() != null) {
+            state.setDetail(getDetail());
+        }
+        if (first || getPlannedEffort() != null) {
+            state.setPlannedEffort(getPlannedEffort());
+        }
+        for(Field.Name fieldName : Field.Name.values()) {
+            Object value = getValue(fieldName);
+            if (first || value != null) {
+                state.setValue(fieldName, value);
+            }
+        }
+    }
+    
+    private static boolean isDifferent(Object before, Object after) {
+        if (before == null || after == null) {
+            return before != after;
+        }
+        // dates loaded from the database are Timestamps, which never equal a Date
+        if (before instanceof Date && after instanceof Date) {
+            return ((Date) before).getTime() != ((Date) after).getTime();
+        }
+        return !before.equals(after);
+    }
+    
     //==========================================================================
     
     public Integer getType() {
@@ -138,6 +260,14 @@ public class History extends AbstractItem {
     public void setActualEffort(Double actualEffort) {
         this.actualEffort = actualEffort;
     }
+
+    public Long getChangedFields() {
+        return changedFields;
+    }
+
+    public void setChangedFields(Long changedFields) {
+        this.changedFields = changedFields;
+    }
     
     @Override
     public String toString() {
@@ -16,6 +16,7 @@
 
 package info.jtrac.domain;
 
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -41,6 +42,8 @@ public class Item extends AbstractItem {
     
     // should be ideally in form backing object but for convenience
     private String editReason;
+    // true only when loaded from the archive tables, see jtrac.hbm.xml
+    private boolean archived;
 
     @Override
     public String getRefId() {
@@ -85,6 +88,9 @@ public class Item extends AbstractItem {
         Document d = new Document();        
         d.add(new org.apache.lucene.document.Field("id", getId() + "", Store.YES, Index.NO));            
         d.add(new org.apache.lucene.document.Field("type", "item", Store.YES, Index.NO));        
+        // unique per document, so that the indexer can replace it when the item is edited
+        d.add(new org.apache.lucene.document.Field("key", "item:" + getId(), Store.YES, Index.UN_TOKENIZED));
+        d.add(new org.apache.lucene.document.Field("itemId", getId() + "", Store.YES, Index.UN_TOKENIZED));
         StringBuffer sb = new StringBuffer();
         if (getSummary() != null) {
             sb.append(getSummary());
@@ -110,6 +116,59 @@ public class Item extends AbstractItem {
         return out;
     }       
     
+    /**
+     * the state of the item right after each history entry, in order
+     * the entries returned are copies that are not attached to the session
+     * they have the logged by, comment etc. of the entry they stand for
+     * and the field values, status and assigned to as they were at that point
+     */
+    public List<History> getHistoryStates() {
+        if (history == null) {
+            return null;
+        }
+        List<History> states = new ArrayList<History>(history.size());
+        History state = null;
+        for(History h : history) {
+            History next = state == null ? new History() : new History(state);
+            h.applyTo(next, state == null);
+            next.setId(h.getId());
+            next.setParent(this);
+            next.setLoggedBy(h.getLoggedBy());
+            next.setType(h.getType());
+            next.setTimeStamp(h.getTimeStamp());
+            next.setComment(h.getComment());
+            next.setAttachment(h.getAttachment());
+            next.setActualEffort(h.getActualEffort());
+            next.setIndex(states.size());
+            states.add(next);
+            state = next;
+        }
+        return states;
+    }
+    
+    /**
+     * converts the history entries after the first one that are not deltas
+     * yet, so that they only hold what changed, see History
+     * returns the number of entries converted
+     */
+    public int storeHistoryAsDeltas() {
+        if (history == null) {
+            return 0;
+        }
+        int count = 0;
+        History before = null;
+        for(History h : history) {
+            History after = before == null ? new History() : new History(before);
+            h.applyTo(after, before == null);
+            if (before != null && !h.isDelta()) {
+                h.storeChanges(before, after);
+                count++;
+            }
+            before = after;
+        }
+        return count;
+    }
+    
     //===========================================================
     
     @Override
@@ -168,6 +227,14 @@ public class Item extends AbstractItem {
     public void setEditReason(String editReason) {
         this.editReason = editReason;
     }   
+
+    public boolean isArchived() {
+        return archived;
+    }
+
+    public void setArchived(boolean archived) {
+        this.archived = archived;
+    }
     
     @Override
     public String toString() {
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.jtrac.domain;
+
+import java.util.Date;
+import java.util.List;
+import org.hibernate.transform.ResultTransformer;
+
+/**
+ * turns the rows selected by ItemSearch.getCriteriaForRows() into Items
+ * that are not attached to the session, only the id, sequence number,
+ * space and the columns to be rendered are populated
+ * when showing history these are History instances, with a parent Item
+ * holding just enough for the ref id, and the index set
+ * these are for display only and must never be stored
+ */
+public class ItemRowTransformer implements ResultTransformer {
+
+    // Field.Name or ColumnHeading.Name per column selected after the ones needed for the ref id
+    private final List<Object> columns;
+    private final boolean history;
+
+    public ItemRowTransformer(List<Object> columns, boolean history) {
+        this.columns = columns;
+        this.history = history;
+    }
+
+    public Object transformTuple(Object[] tuple, String[] aliases) {
+        AbstractItem item;
+        int i;
+        if (history) {
+            Item parent = new Item();
+            parent.setId((Long) tuple[1]);
+            parent.setSequenceNum((Long) tuple[2]);
+            parent.setSpace((Space) tuple[3]);
+            History h = new History();
+            h.setParent(parent);
+            h.setIndex((Integer) tuple[4]);
+            h.setChangedFields((Long) tuple[5]);
+            item = h;
+            i = 6;
+        } else {
+            Item it = new Item();
+            it.setSequenceNum((Long) tuple[1]);
+            it.setSpace((Space) tuple[2]);
+            item = it;
+            i = 3;
+        }
+        item.setId((Long) tuple[0]);
+        for(Object column : columns) {
+            Object value = tuple[i++];
+            if (column instanceof Field.Name) {
+                item.setValue((Field.Name) column, value);
+                continue;
+            }
+            switch((ColumnHeading.Name) column) {
+                case SUMMARY: item.setSummary((String) value); break;
+                case DETAIL:
+                    item.setDetail((String) value);
+                    if (history) {
+                        ((History) item).setComment((String) tuple[i++]);
+                        ((History) item).setAttachment((Attachment) tuple[i++]);
+                    }
+                    break;
+                case STATUS: item.setStatus((Integer) value); break;
+                case TIME_STAMP: item.setTimeStamp((Date) value); break;
+                case LOGGED_BY: item.setLoggedBy((User) value); break;
+                case ASSIGNED_TO: item.setAssignedTo((User) value); break;
+                default: throw new RuntimeException("Unexpected column: '" + column + "'");
+            }
+        }
+        return item;
+    }
+
+    public List transformList(List list) {
+        return list;
+    }
+
+}
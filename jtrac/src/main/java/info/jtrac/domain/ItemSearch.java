@@ -28,9 +28,14 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import org.apache.wicket.PageParameters;
+import org.hibernate.FetchMode;
+import org.hibernate.Hibernate;
 import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.ProjectionList;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.type.Type;
 
 /**
  * Object that holds filter criteria when searching for Items
@@ -47,6 +52,7 @@ public class ItemSearch implements Serializable {
     private String sortFieldName = "id";
     private boolean sortDescending = true;
     private boolean showHistory;    
+    private boolean includeArchived;
     private boolean batchMode;
         
     private long selectedItemId;
@@ -57,6 +63,14 @@ public class ItemSearch implements Serializable {
     private Map<String, FilterCriteria> filterCriteriaMap = new LinkedHashMap<String, FilterCriteria>();
     
     private String defaultVisibleFlags;
+    
+    // keyset pagination: id of the last item on the previous page, by page number
+    private Map<Integer, Long> seekIds = new HashMap<Integer, Long>();
+    private int seekPageSize;
+    private boolean seekSortDescending;
+    private boolean resultCountCached;
+    // the part of resultCount that are live items, when archived items are included
+    private long liveResultCount;
         
     
     public ItemSearch(User user) {
@@ -73,6 +87,7 @@ public class ItemSearch implements Serializable {
     
     public void initFromPageParameters(PageParameters params, User user, Jtrac jtrac) {       
         showHistory = params.getBoolean("showHistory");
+        includeArchived = params.getBoolean("archived");
         pageSize = params.getInt("pageSize", 25);
         sortDescending = !params.getBoolean("sortAscending");
         sortFieldName = params.getString("sortFieldName", "id");        
@@ -132,6 +147,9 @@ public class ItemSearch implements Serializable {
         if(showHistory) {
             map.put("showHistory", "true");
         }
+        if(includeArchived) {
+            map.put("archived", "true");
+        }
         if(pageSize != 25) {
             map.put("pageSize", pageSize + "");
         }
@@ -152,7 +170,87 @@ public class ItemSearch implements Serializable {
     // have to do this two step process as "order by" clause conflicts with "count (*)" clause
     // so the DAO has to use getCriteriaForCount() separately
     public DetachedCriteria getCriteria() {
-        DetachedCriteria criteria = getCriteriaForCount();
+        return getCriteria(false);
+    }
+    
+    /**
+     * archived true queries the archive tables instead of the live ones
+     * the restrictions, sort order and columns are the same for both
+     */
+    public DetachedCriteria getCriteria(boolean archived) {
+        DetachedCriteria criteria = getSortedCriteria(archived);
+        addFetchModes(criteria);
+        return criteria;
+    }
+    
+    /**
+     * like getCriteria() but selects only the columns that will be rendered
+     * the result is a list of unattached, read-only Items (or History when
+     * showing history) that have nothing else populated, see ItemRowTransformer
+     * large text columns are only selected when the detail column is visible
+     */
+    public DetachedCriteria getCriteriaForRows() {
+        return getCriteriaForRows(false);
+    }
+    
+    public DetachedCriteria getCriteriaForRows(boolean archived) {
+        DetachedCriteria criteria = getSortedCriteria(archived);
+        String items = archived ? "items_archive" : "items";
+        String history = archived ? "history_archive" : "history";
+        ProjectionList projections = Projections.projectionList();
+        // the ref id needs these for every row, the space is usually in the second-level cache
+        projections.add(Projections.id());
+        if (showHistory) {
+            // criteria projections cannot reach into the joined parent, so these are plain SQL
+            // the position in the item history saves loading the whole history of every item on the page
+            projections.add(Projections.sqlProjection("{alias}.item_id as parent_id,"
+                    + " (select i_parent.sequence_num from " + items + " i_parent where i_parent.id = {alias}.item_id) as parent_sequence_num,"
+                    + " (select i_parent.space_id from " + items + " i_parent where i_parent.id = {alias}.item_id) as parent_space_id,"
+                    + " (select count(*) from " + history + " h_index where h_index.item_id = {alias}.item_id and h_index.id < {alias}.id) as history_index",
+                    new String[] {"parent_id", "parent_sequence_num", "parent_space_id", "history_index"},
+                    new Type[] {Hibernate.LONG, Hibernate.LONG, Hibernate.entity(Space.class), Hibernate.INTEGER}));
+            // deltas are swapped for the full state of the item afterwards, see JtracImpl
+            projections.add(Projections.property("changedFields"));
+        } else {
+            projections.add(Projections.property("sequenceNum"));
+            projections.add(Projections.property("space"));
+        }
+        List<Object> columns = new ArrayList<Object>();
+        for(ColumnHeading ch : getColumnHeadingsToRender()) {
+            if (ch.isField()) {
+                projections.add(Projections.property(ch.getNameText()));
+                columns.add(ch.getField().getName());
+                continue;
+            }
+            switch(ch.getName()) {
+                case DETAIL:
+                    projections.add(Projections.property("detail"));
+                    if (showHistory) {
+                        projections.add(Projections.property("comment"));
+                        projections.add(Projections.property("attachment"));
+                    }
+                    columns.add(ch.getName());
+                    break;
+                case SUMMARY:
+                case STATUS:
+                case TIME_STAMP:
+                // users come back as proxies, batch fetched (see jtrac.hbm.xml) when the names are rendered
+                case LOGGED_BY:
+                case ASSIGNED_TO:
+                    projections.add(Projections.property(ch.getNameText()));
+                    columns.add(ch.getName());
+                    break;
+                default: // ID and SPACE are covered by the columns that are always selected
+            }
+        }
+        criteria.setProjection(projections);
+        // has to come after the projection, which resets the transformer
+        criteria.setResultTransformer(new ItemRowTransformer(columns, showHistory));
+        return criteria;
+    }
+    
+    private DetachedCriteria getSortedCriteria(boolean archived) {
+        DetachedCriteria criteria = getCriteriaForCount(archived);
         if (sortFieldName == null) { // can happen only for multi-space search
             sortFieldName = "id"; // effectively is a sort on created date
         }
@@ -190,19 +288,74 @@ public class ItemSearch implements Serializable {
                 }                 
             }
         } else {        
-            if (sortDescending) {
+            Field field = getSortField();
+            if (field != null) {
+                // drop down, sort by the order of the options, not by the key
+                criteria.addOrder(new OptionRankOrder(field, !sortDescending));
+                // keep the order within one option stable across pages
+                criteria.addOrder(sortDescending ? Order.desc("id") : Order.asc("id"));
+            } else if (sortDescending) {
                 criteria.addOrder(Order.desc(sortFieldName));
             } else {
                 criteria.addOrder(Order.asc(sortFieldName));
             } 
         }
         return criteria;
+    }
+    
+    /**
+     * every row rendered needs the space (for the ref id) and the users for
+     * the visible columns, join fetch exactly these along with the page
+     * instead of having them loaded one select at a time while rendering
+     * the metadata is left to the second-level cache, it is the same for all rows
+     */
+    private void addFetchModes(DetachedCriteria criteria) {
+        String path = "";
+        if (showHistory) {
+            criteria.setFetchMode("parent", FetchMode.JOIN);
+            path = "parent.";
+        }
+        criteria.setFetchMode(path + "space", FetchMode.JOIN);
+        for(ColumnHeading ch : getColumnHeadingsToRender()) {
+            if (ch.isField()) {
+                continue;
+            }
+            switch(ch.getName()) {
+                case LOGGED_BY: criteria.setFetchMode("loggedBy", FetchMode.JOIN); break;
+                case ASSIGNED_TO: criteria.setFetchMode("assignedTo", FetchMode.JOIN); break;
+                case DETAIL:
+                    if (showHistory) {
+                        criteria.setFetchMode("attachment", FetchMode.JOIN);
+                    }
+                    break;
+                default:
+            }
+        }
+    }
+    
+    /**
+     * the drop down Field being sorted on, null if the sort is not on a
+     * drop down Field or if there is no space to resolve the options from
+     */
+    private Field getSortField() {
+        if (space == null || !Field.isValidName(sortFieldName)) {
+            return null;
+        }
+        Field field = space.getMetadata().getField(sortFieldName);
+        if (field == null || !field.isDropDownType() || field.getOptions() == null || field.getOptions().isEmpty()) {
+            return null;
+        }
+        return field;
     }    
     
     public DetachedCriteria getCriteriaForCount() {               
+        return getCriteriaForCount(false);
+    }
+    
+    public DetachedCriteria getCriteriaForCount(boolean archived) {               
         DetachedCriteria criteria = null;        
         if (showHistory) {
-            criteria = DetachedCriteria.forClass(History.class);           
+            criteria = archived ? DetachedCriteria.forEntityName("ArchivedHistory") : DetachedCriteria.forClass(History.class);           
             // apply restrictions to parent, this is an inner join =============
             parent = criteria.createCriteria("parent");
             if(space == null) {
@@ -214,7 +367,7 @@ public class ItemSearch implements Serializable {
                 parent.add(Restrictions.in("id", itemIds));
             }             
         } else {
-            criteria = DetachedCriteria.forClass(Item.class);
+            criteria = archived ? DetachedCriteria.forEntityName("ArchivedItem") : DetachedCriteria.forClass(Item.class);
             if(space == null) {
                 criteria.add(Restrictions.in("space", getSelectedSpaces()));
             } else {
@@ -230,6 +383,59 @@ public class ItemSearch implements Serializable {
         return criteria;
     }
     
+    /**
+     * keyset pagination is used when sorting on id within a space,
+     * pages then start from the id of the last item of the previous page
+     * instead of skipping rows, which keeps deep pages as fast as the first
+     * not when archived items are included, they are paged after the live ones
+     */
+    public boolean isKeysetPagination() {
+        return pageSize > 0 && !showHistory && !includeArchived && space != null && "id".equals(sortFieldName);
+    }
+    
+    /**
+     * the nearest page at or before the current page for which the starting
+     * id is known, the DAO seeks to it and then skips only the pages in between
+     * returns 0 if there is none and the query has to start from the first row
+     */
+    public int getSeekPage() {
+        if (currentPage == 0 || !isKeysetPagination() 
+                || seekPageSize != pageSize || seekSortDescending != sortDescending) {
+            return 0;
+        }
+        for (int page = currentPage; page > 0; page--) {
+            if (seekIds.containsKey(page)) {
+                return page;
+            }
+        }
+        return 0;
+    }
+    
+    public long getSeekId(int page) {
+        return seekIds.get(page);
+    }
+    
+    /**
+     * remember where the next page starts, loading the first page
+     * again or changing page size or sort direction starts afresh
+     */
+    public void setLastIdOfPage(long id) {
+        if (currentPage == 0 || seekPageSize != pageSize || seekSortDescending != sortDescending) {
+            seekIds.clear();
+            seekPageSize = pageSize;
+            seekSortDescending = sortDescending;
+        }
+        seekIds.put(currentPage + 1, id);
+    }
+    
+    /**
+     * the row count is worked out along with the first page and
+     * re-used when moving to other pages of the same search
+     */
+    public boolean isResultCountCached() {
+        return currentPage > 0 && resultCountCached;
+    }
+    
     public List<Field> getFields() {
         if(space == null) {
             List<Field> list = new ArrayList<Field>(2);
@@ -378,6 +584,16 @@ public class ItemSearch implements Serializable {
 
     public void setResultCount(long resultCount) {
         this.resultCount = resultCount;
+        this.resultCountCached = true;
+    }
+
+    public long getLiveResultCount() {
+        return liveResultCount;
+    }
+
+    public void setResultCount(long resultCount, long liveResultCount) {
+        setResultCount(resultCount);
+        this.liveResultCount = liveResultCount;
     }
 
     public String getSortFieldName() {
@@ -404,6 +620,14 @@ public class ItemSearch implements Serializable {
         this.showHistory = showHistory;
     }
 
+    public boolean isIncludeArchived() {
+        return includeArchived;
+    }
+
+    public void setIncludeArchived(boolean includeArchived) {
+        this.includeArchived = includeArchived;
+    }
+
     public long getSelectedItemId() {
         return selectedItemId;
     }
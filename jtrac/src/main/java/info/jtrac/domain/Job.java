@@ -0,0 +1,136 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.jtrac.domain;
+
+import java.util.Date;
+
+/**
+ * a long running admin operation over all the items of one space, run in the
+ * background in chunks of batch size items, each chunk in its own transaction
+ * the id of the last item done is stored along with each chunk, so a job that
+ * was interrupted by a restart or a crash carries on from there
+ * the row is deleted when the job is complete
+ */
+public class Job extends BatchInfo {
+    
+    public static final int REMOVE_SPACE = 1;
+    public static final int FIELD_TO_NULL = 2;
+    public static final int FIELD_VALUE_TO_NULL = 3;
+    public static final int STATUS_TO_OPEN = 4;
+    public static final int HISTORY_TO_DELTAS = 5;
+    // value holds the archive age in days, counted back from the time stamp
+    public static final int ARCHIVE_ITEMS = 6;
+    
+    private long id;
+    private int type;
+    private long spaceId;
+    private String fieldName;
+    private Integer value;
+    private long lastItemId;
+    private Date timeStamp;
+    private String errorMessage;
+    
+    public Job() {
+        // zero arg constructor
+    }
+    
+    public Job(int type, Space space) {
+        this.type = type;
+        this.spaceId = space.getId();
+        this.timeStamp = new Date();
+    }
+
+    //==========================================================================
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public void setType(int type) {
+        this.type = type;
+    }
+
+    public long getSpaceId() {
+        return spaceId;
+    }
+
+    public void setSpaceId(long spaceId) {
+        this.spaceId = spaceId;
+    }
+
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    public void setFieldName(String fieldName) {
+        this.fieldName = fieldName;
+    }
+
+    public Integer getValue() {
+        return value;
+    }
+
+    public void setValue(Integer value) {
+        this.value = value;
+    }
+
+    public long getLastItemId() {
+        return lastItemId;
+    }
+
+    public void setLastItemId(long lastItemId) {
+        this.lastItemId = lastItemId;
+    }
+
+    public Date getTimeStamp() {
+        return timeStamp;
+    }
+
+    public void setTimeStamp(Date timeStamp) {
+        this.timeStamp = timeStamp;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+    
+    @Override
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("id [").append(id);
+        sb.append("]; type [").append(type);
+        sb.append("]; spaceId [").append(spaceId);
+        sb.append("]; fieldName [").append(fieldName);
+        sb.append("]; value [").append(value);
+        sb.append("]; lastItemId [").append(lastItemId);
+        sb.append("]");
+        return sb.toString();
+    }
+
+}
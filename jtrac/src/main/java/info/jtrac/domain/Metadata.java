@@ -92,6 +92,23 @@ public class Metadata implements Serializable {
     private Map<String, Role> roles;
     private Map<Integer, String> states;
     private List<Field.Name> fieldOrder;    
+    // not null while the collections above are shared with PARSED_CACHE
+    private String sharedXml;
+    
+    private static final int PARSED_CACHE_SIZE = 500;
+    
+    /**
+     * metadata already parsed, keyed by "id:version" so that hydrating the
+     * same row again does not run dom4j and the XPath queries again
+     * the cached collections are shared by all instances loaded from
+     * that row and must never be changed, see copyOnWrite()
+     */
+    private static final Map<String, Metadata> PARSED_CACHE = new LinkedHashMap<String, Metadata>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest) {
+            return size() > PARSED_CACHE_SIZE;
+        }
+    };
     
     public Metadata() {
         init();
@@ -102,10 +119,61 @@ public class Metadata implements Serializable {
         roles = new HashMap<String, Role>();
         states = new TreeMap<Integer, String>();
         fieldOrder = new LinkedList<Field.Name>();         
+        sharedXml = null;
+    }
+    
+    /**
+     * switch to a private copy of the collections before changing them
+     * if they are still shared with other instances via PARSED_CACHE
+     */
+    private void copyOnWrite() {
+        if (sharedXml == null) {
+            return;
+        }
+        Map<Field.Name, Field> fieldsCopy = new EnumMap<Field.Name, Field>(Field.Name.class);
+        for (Field field : fields.values()) {
+            fieldsCopy.put(field.getName(), field.getClone());
+        }
+        Map<String, Role> rolesCopy = new HashMap<String, Role>();
+        for (Role role : roles.values()) {
+            rolesCopy.put(role.getName(), role.getClone());
+        }
+        fields = fieldsCopy;
+        roles = rolesCopy;
+        states = new TreeMap<Integer, String>(states);
+        fieldOrder = new LinkedList<Field.Name>(fieldOrder);
+        sharedXml = null;
     }
     
     /* accessor, will be used by Hibernate */
     public void setXmlString(String xmlString) {
+        if (xmlString == null || id == 0) {
+            parse(xmlString);
+            return;
+        }
+        // Hibernate sets the id and version before this property
+        String key = id + ":" + version;
+        Metadata parsed;
+        synchronized(PARSED_CACHE) {
+            parsed = PARSED_CACHE.get(key);
+        }
+        // version numbers can repeat after a rollback, so compare the XML as well
+        if (parsed == null || !parsed.sharedXml.equals(xmlString)) {
+            parsed = new Metadata();
+            parsed.parse(xmlString);
+            parsed.sharedXml = xmlString;
+            synchronized(PARSED_CACHE) {
+                PARSED_CACHE.put(key, parsed);
+            }
+        }
+        fields = parsed.fields;
+        roles = parsed.roles;
+        states = parsed.states;
+        fieldOrder = parsed.fieldOrder;
+        sharedXml = parsed.sharedXml;
+    }
+    
+    private void parse(String xmlString) {
         init();
         if (xmlString == null) {
             return;
@@ -132,6 +200,10 @@ public class Metadata implements Serializable {
     
     /* accessor, will be used by Hibernate */
     public String getXmlString() {
+        if (sharedXml != null) {
+            // unchanged since it was loaded
+            return sharedXml;
+        }
         Document d = XmlUtils.getNewDocument(METADATA);
         Element root = d.getRootElement();
         Element fs = root.addElement(FIELDS);
@@ -163,6 +235,7 @@ public class Metadata implements Serializable {
     //====================================================================
     
     public void initRoles() {
+        copyOnWrite();
         // set up default simple workflow
         states.put(State.NEW, "New");
         states.put(State.OPEN, "Open");
@@ -179,6 +252,7 @@ public class Metadata implements Serializable {
     }        
     
     public void add(Field field) {
+        copyOnWrite();
         fields.put(field.getName(), field); // will overwrite if exists
         if (!fieldOrder.contains(field.getName())) { // but for List, need to check
             fieldOrder.add(field.getName());
@@ -191,6 +265,7 @@ public class Metadata implements Serializable {
     }
     
     public void removeField(String fieldName) {
+        copyOnWrite();
         Field.Name tempName = Field.convertToName(fieldName);
         fields.remove(tempName);
         fieldOrder.remove(tempName);
@@ -202,6 +277,7 @@ public class Metadata implements Serializable {
     }
     
     public void addState(String stateName) {
+        copyOnWrite();
         // first get the max of existing state keys
         int maxStatus = 0;
         for (int status : states.keySet()) {
@@ -219,7 +295,13 @@ public class Metadata implements Serializable {
         }
     }        
     
+    public void renameState(int stateId, String stateName) {
+        copyOnWrite();
+        states.put(stateId, stateName);
+    }
+    
     public void removeState(int stateId) {
+        copyOnWrite();
         states.remove(stateId);
         for (Role role : roles.values()) {
             role.removeState(stateId);
@@ -228,6 +310,7 @@ public class Metadata implements Serializable {
     }
     
     public void addRole(String roleName) {
+        copyOnWrite();
         Role role = new Role(roleName);
         for (Map.Entry<Integer, String> entry : states.entrySet()) {
             State state = new State(entry.getKey());
@@ -239,6 +322,7 @@ public class Metadata implements Serializable {
     
     public void renameRole(String oldRole, String newRole) {
         // important! this has to be combined with a database update
+        copyOnWrite();
         Role role = roles.get(oldRole);
         if (role == null) {
             return; // TODO improve JtracTest and assert not null here
@@ -250,20 +334,39 @@ public class Metadata implements Serializable {
     
     public void removeRole(String roleName) {
         // important! this has to be combined with a database update
+        copyOnWrite();
         roles.remove(roleName);
     }
     
     public Set<Field.Name> getUnusedFieldNames() {
+        return getUnusedFieldNames(Collections.<String>emptySet());
+    }
+    
+    /**
+     * reserved are the names of removed fields whose database column is
+     * still being cleared by a background job, see Job.FIELD_TO_NULL, a new
+     * field using the column meanwhile would have its values wiped
+     */
+    public Set<Field.Name> getUnusedFieldNames(Collection<String> reservedFieldNames) {
         EnumSet<Field.Name> allFieldNames = EnumSet.allOf(Field.Name.class);
         for (Field f : getFields().values()) {
             allFieldNames.remove(f.getName());
         }
+        for (Field.Name fieldName : EnumSet.copyOf(allFieldNames)) {
+            if (reservedFieldNames.contains(fieldName.getText())) {
+                allFieldNames.remove(fieldName);
+            }
+        }
         return allFieldNames;
     }
     
     public Map<String, String> getAvailableFieldTypes() {
+        return getAvailableFieldTypes(Collections.<String>emptySet());
+    }
+    
+    public Map<String, String> getAvailableFieldTypes(Collection<String> reservedFieldNames) {
         Map<String, String> fieldTypes = new LinkedHashMap<String, String>();
-        for (Field.Name fieldName : getUnusedFieldNames()) {
+        for (Field.Name fieldName : getUnusedFieldNames(reservedFieldNames)) {
             String fieldType = fieldTypes.get(fieldName.getType() + "");
             if (fieldType == null) {
                 fieldTypes.put(fieldName.getType() + "", "1");
@@ -277,7 +380,11 @@ public class Metadata implements Serializable {
     }
     
     public Field getNextAvailableField(int fieldType) {
-        for (Field.Name fieldName : getUnusedFieldNames()) {
+        return getNextAvailableField(fieldType, Collections.<String>emptySet());
+    }
+    
+    public Field getNextAvailableField(int fieldType, Collection<String> reservedFieldNames) {
+        for (Field.Name fieldName : getUnusedFieldNames(reservedFieldNames)) {
             if (fieldName.getType() == fieldType) {
                 return new Field(fieldName + "");
             }
@@ -287,16 +394,22 @@ public class Metadata implements Serializable {
     
     // customized accessor
     public Map<Field.Name, Field> getFields() {
-        Map<Field.Name, Field> map = fields;
-        if (parent != null) {
-            map.putAll(parent.getFields());
+        if (parent == null) {
+            return Collections.unmodifiableMap(fields);
         }
-        return map;
+        Map<Field.Name, Field> map = new EnumMap<Field.Name, Field>(fields);
+        map.putAll(parent.getFields());
+        return Collections.unmodifiableMap(map);
     }        
     
+    public void swapFieldOrder(int index, int swapIndex) {
+        copyOnWrite();
+        Collections.swap(fieldOrder, index, swapIndex);
+    }
+    
     public List<Field> getFieldList() {        
         List<Field> list = new ArrayList<Field>(fields.size());
-        for (Field.Name fieldName : getFieldOrder()) {
+        for (Field.Name fieldName : fieldOrder) {
             list.add(fields.get(fieldName));
         }
         return list;
@@ -392,6 +505,7 @@ public class Metadata implements Serializable {
     }
     
     public void toggleTransition(String roleKey, int fromState,  int toState) {
+        copyOnWrite();
         State state = getRoleState(roleKey, fromState);
         if (state.getTransitions().contains(toState)) {
             state.getTransitions().remove(toState);
@@ -401,6 +515,7 @@ public class Metadata implements Serializable {
     }
     
     public void switchMask(int stateKey, String roleKey, String fieldName) {
+        copyOnWrite();
         State state = getRoleState(roleKey, stateKey);
         Field.Name tempName = Field.convertToName(fieldName);        
         Integer mask = state.getFields().get(tempName);
@@ -456,7 +571,8 @@ public class Metadata implements Serializable {
         Map<Field.Name, Field> fs = new HashMap<Field.Name, Field>(getFieldCount());
         for(Map.Entry<Field.Name, Integer> entry : state.getFields().entrySet()) {
             if (entry.getValue() == State.MASK_OPTIONAL || entry.getValue() == State.MASK_MANDATORY) {
-                Field f = fields.get(entry.getKey());
+                // work on a clone, the Field may be shared with other instances
+                Field f = fields.get(entry.getKey()).getClone();
                 // set if optional or not, this changes depending on the user / role and status
                 f.setOptional(entry.getValue() == State.MASK_OPTIONAL);
                 fs.put(f.getName(), f);
@@ -466,11 +582,11 @@ public class Metadata implements Serializable {
     }
     
     public Collection<Role> getRoleList() {
-        return roles.values();
+        return Collections.unmodifiableCollection(roles.values());
     }
     
     public Collection<String> getRoleKeys() {
-        return roles.keySet();
+        return Collections.unmodifiableSet(roles.keySet());
     }
     
     // introducing Admin permissions per space, slight hack
@@ -536,18 +652,18 @@ public class Metadata implements Serializable {
     }
     
     //=======================================
-    // no setters required
+    // no setters required, use the methods above to make changes
     
     public Map<String, Role> getRolesMap() {
-        return roles;
+        return Collections.unmodifiableMap(roles);
     }  
 
     public Map<Integer, String> getStatesMap() {
-        return states;
+        return Collections.unmodifiableMap(states);
     }
     
     public List<Field.Name> getFieldOrder() {
-        return fieldOrder;
+        return Collections.unmodifiableList(fieldOrder);
     }   
     
     @Override
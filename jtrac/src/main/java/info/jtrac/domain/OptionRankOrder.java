@@ -0,0 +1,69 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.jtrac.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.Criteria;
+import org.hibernate.HibernateException;
+import org.hibernate.criterion.CriteriaQuery;
+import org.hibernate.criterion.Order;
+
+/**
+ * Hibernate Criteria Order for a drop down Field that sorts by the
+ * position of the option as defined in the Metadata instead of by the
+ * option key stored in the database, rendered as a SQL CASE expression
+ * so that the database can sort and paginate
+ * values that are null or not a known option sort before all options
+ */
+public class OptionRankOrder extends Order {
+
+    private final String propertyName;
+    private final List<Integer> keys;
+    private final boolean ascending;
+
+    public OptionRankOrder(Field field, boolean ascending) {
+        super(field.getName().getText(), ascending);
+        this.propertyName = field.getName().getText();
+        this.ascending = ascending;
+        keys = new ArrayList<Integer>(field.getOptions().size());
+        for (String key : field.getOptions().keySet()) {
+            // option keys are numbers, parsing also keeps the SQL safe
+            keys.add(Integer.parseInt(key));
+        }
+    }
+
+    @Override
+    public String toSqlString(Criteria criteria, CriteriaQuery criteriaQuery) throws HibernateException {
+        String column = criteriaQuery.getColumnsUsingProjection(criteria, propertyName)[0];
+        StringBuilder sb = new StringBuilder("case ").append(column);
+        int rank = 0;
+        for (Integer key : keys) {
+            sb.append(" when ").append(key).append(" then ").append(rank++);
+        }
+        sb.append(" else -1 end");
+        sb.append(ascending ? " asc" : " desc");
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "rank of " + propertyName + " in " + keys + (ascending ? " asc" : " desc");
+    }
+
+}
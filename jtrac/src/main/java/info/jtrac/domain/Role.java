@@ -93,6 +93,21 @@ public class Role implements Serializable {
         } // end for each
     }
     
+    /**
+     * This method will return a deep copy of this role, including copies
+     * of all its {@link State} objects.
+     * 
+     * @return Returns the copy of this role.
+     */
+    public Role getClone() {
+        Role role = new Role(name);
+        role.description = description;
+        for (State state : states.values()) {
+            role.add(state.getClone());
+        } // end for each
+        return role;
+    }
+    
     /**
      * This method will append this object to an existing XML document.
      * 
@@ -127,6 +127,19 @@ public class State implements Serializable {
         } // end for each
     }
     
+    /**
+     * This method will return a copy of this state with its own set of
+     * {@link #transitions} and map of {@link #fields}.
+     * 
+     * @return Returns the copy of this state.
+     */
+    public State getClone() {
+        State state = new State(status);
+        state.transitions.addAll(transitions);
+        state.fields.putAll(fields);
+        return state;
+    }
+    
     /**
      * This method will append this object to an existing XML document.
      * 
@@ -16,6 +16,7 @@
 
 package info.jtrac.hibernate;
 
+import info.jtrac.ItemVisitor;
 import info.jtrac.JtracDao;
 import info.jtrac.domain.Attachment;
 import info.jtrac.domain.Config;
@@ -26,7 +27,7 @@ import info.jtrac.domain.History;
 import info.jtrac.domain.Item;
 import info.jtrac.domain.ItemItem;
 import info.jtrac.domain.ItemSearch;
-import info.jtrac.domain.ItemUser;
+import info.jtrac.domain.Job;
 import info.jtrac.domain.Metadata;
 import info.jtrac.domain.Role;
 import info.jtrac.domain.Space;
@@ -37,24 +38,31 @@ import info.jtrac.domain.UserSpaceRole;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 
 import java.util.Map;
-import org.apache.commons.collections.ComparatorUtils;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.hibernate.CacheMode;
 import org.hibernate.Criteria;
 import org.hibernate.FetchMode;
+import org.hibernate.Hibernate;
+import org.hibernate.LockMode;
+import org.hibernate.Query;
+import org.hibernate.SQLQuery;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
 import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.MatchMode;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.persister.collection.AbstractCollectionPersister;
+import org.hibernate.persister.entity.AbstractEntityPersister;
 import org.springframework.orm.hibernate3.HibernateCallback;
-import org.springframework.orm.hibernate3.HibernateTemplate;
 import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
 
 /**
@@ -63,7 +71,31 @@ import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
  */
 public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
     
+    // config holding the mapping version the schema was last updated for, see SchemaHelper
+    private static final String SCHEMA_VERSION = "schema.version";
+    
     private SchemaHelper schemaHelper;
+    private int sequenceBlockSize = 1;
+    private final ConcurrentMap<Long, SequenceBlock> sequenceBlocks = new ConcurrentHashMap<Long, SequenceBlock>();
+    
+    /**
+     * numbers reserved from the space_sequence table but not handed out yet
+     */
+    private static class SequenceBlock {
+        
+        private final long id;
+        private long next;
+        private long end;
+        
+        SequenceBlock(long id) {
+            this.id = id;
+        }
+        
+        boolean isExhausted() {
+            return next >= end;
+        }
+        
+    }
     
     public void setSchemaHelper(SchemaHelper schemaHelper) {
         this.schemaHelper = schemaHelper;
@@ -73,6 +105,21 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
         getHibernateTemplate().merge(item);
     }
     
+    public void storeItems(final List<Item> items) {
+        getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(Session session) {
+                for (Item item : items) {
+                    // these are all new, save avoids the select that merge would do
+                    session.save(item);
+                }
+                // write this batch out and keep the session small
+                session.flush();
+                session.clear();
+                return null;
+            }
+        });
+    }
+    
     public Item loadItem(long id) {
         return (Item) getHibernateTemplate().get(Item.class, id);
     }
@@ -90,26 +137,27 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
         return getHibernateTemplate().find("from Item item where item.sequenceNum = ? and item.space.prefixCode = ?", params);
     }
     
+    public List<Item> findArchivedItems(long sequenceNum, String prefixCode) {
+        Object[] params = new Object[] {sequenceNum, prefixCode};
+        return getHibernateTemplate().find("from ArchivedItem item where item.sequenceNum = ? and item.space.prefixCode = ?", params);
+    }
+    
     public List<Item> findItems(ItemSearch itemSearch) {
+        return findItems(itemSearch, false);
+    }
+    
+    public List<Item> findItemRows(ItemSearch itemSearch) {
+        return findItems(itemSearch, true);
+    }
+    
+    private List<Item> findItems(ItemSearch itemSearch, boolean rows) {
         int pageSize = itemSearch.getPageSize();
-        // TODO: if we are ordering by a custom column, we must load the whole
-        // list to do an in-memory sort. we need to find a better way
-        Field.Name sortFieldName = Field.isValidName(itemSearch.getSortFieldName()) ? Field.convertToName(itemSearch.getSortFieldName()) : null;
-        // only trigger the in-memory sort for drop-down fields and when querying within a space
-        // UI currently does not allow you to sort by custom field when querying across spaces, but check again
-        boolean doInMemorySort = sortFieldName != null && sortFieldName.isDropDownType() && itemSearch.getSpace() != null;
-        if (pageSize == -1 || doInMemorySort) {
-            List<Item> list = getHibernateTemplate().findByCriteria(itemSearch.getCriteria());
-            if(!list.isEmpty() && doInMemorySort) {
-                doInMemorySort(list, itemSearch);
+        if (pageSize == -1) {
+            List<Item> list = new ArrayList<Item>(getHibernateTemplate().findByCriteria(getCriteria(itemSearch, rows, false)));
+            if (itemSearch.isIncludeArchived()) {
+                list.addAll(getHibernateTemplate().findByCriteria(getCriteria(itemSearch, rows, true)));
             }
             itemSearch.setResultCount(list.size());
-            if (pageSize != -1) {
-                // order-by was requested on custom field, so we loaded all results, but only need one page
-                int start = pageSize * itemSearch.getCurrentPage();
-                int end = Math.min(start + itemSearch.getPageSize(), list.size());
-                return list.subList(start, end);
-            }
             return list;
         } else {
             // pagination
@@ -121,34 +169,61 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
                     }                    
                 });
             }
+            if (itemSearch.isIncludeArchived()) {
+                return findItemsIncludingArchived(itemSearch, rows);
+            }
+            DetachedCriteria criteria = getCriteria(itemSearch, rows, false);
             int firstResult = pageSize * itemSearch.getCurrentPage();
-            List<Item> list = getHibernateTemplate().findByCriteria(itemSearch.getCriteria(), firstResult, pageSize);
-            if(!itemSearch.isBatchMode()) {
-                DetachedCriteria criteria = itemSearch.getCriteriaForCount();
-                criteria.setProjection(Projections.rowCount());
-                Integer count = (Integer) getHibernateTemplate().findByCriteria(criteria).get(0);
-                itemSearch.setResultCount(count);
+            int seekPage = itemSearch.getSeekPage();
+            if (seekPage > 0) {
+                // keyset pagination, continue after the last item seen instead of counting rows from the start
+                long seekId = itemSearch.getSeekId(seekPage);
+                criteria.add(itemSearch.isSortDescending() ? Restrictions.lt("id", seekId) : Restrictions.gt("id", seekId));
+                firstResult = pageSize * (itemSearch.getCurrentPage() - seekPage);
+            }
+            List<Item> list = getHibernateTemplate().findByCriteria(criteria, firstResult, pageSize);
+            if (itemSearch.isKeysetPagination() && !list.isEmpty()) {
+                itemSearch.setLastIdOfPage(list.get(list.size() - 1).getId());
+            }
+            if(!itemSearch.isBatchMode() && !itemSearch.isResultCountCached()) {
+                itemSearch.setResultCount(loadCountOfItems(itemSearch, false));
             }
             return list;
         }
     }
     
-    private void doInMemorySort(List<Item> list, ItemSearch itemSearch) { 
-        // we should never come here if search is across multiple spaces
-        final Field field = itemSearch.getSpace().getMetadata().getField(itemSearch.getSortFieldName());
-        final ArrayList<String> valueList = new ArrayList<String>(field.getOptions().keySet());
-        Comparator<Item> comp = new Comparator<Item>() {
-            public int compare(Item left, Item right) {
-                Object leftVal = left.getValue(field.getName());
-                String leftValString = leftVal == null ? null : leftVal.toString();
-                int leftInd = valueList.indexOf(leftValString);
-                Object rightVal = right.getValue(field.getName());
-                String rightValString = rightVal == null ? null : rightVal.toString();
-                int rightInd = valueList.indexOf(rightValString);
-                return leftInd - rightInd;
-            }
-        };
-        Collections.sort(list, itemSearch.isSortDescending() ? ComparatorUtils.reversedComparator(comp) : comp);
+    /**
+     * archived items are listed after all the live ones, so a page
+     * can be the last few live items followed by the first archived ones
+     */
+    private List<Item> findItemsIncludingArchived(ItemSearch itemSearch, boolean rows) {
+        int pageSize = itemSearch.getPageSize();
+        int firstResult = pageSize * itemSearch.getCurrentPage();
+        // the split between live and archived is worked out along with the total
+        int liveCount = itemSearch.isResultCountCached() ? (int) itemSearch.getLiveResultCount() 
+                : loadCountOfItems(itemSearch, false);
+        List<Item> list = new ArrayList<Item>(pageSize);
+        if (firstResult < liveCount) {
+            list.addAll(getHibernateTemplate().findByCriteria(getCriteria(itemSearch, rows, false), firstResult, pageSize));
+        }
+        if (list.size() < pageSize) {
+            list.addAll(getHibernateTemplate().findByCriteria(getCriteria(itemSearch, rows, true),
+                    Math.max(0, firstResult - liveCount), pageSize - list.size()));
+        }
+        if(!itemSearch.isBatchMode() && !itemSearch.isResultCountCached()) {
+            itemSearch.setResultCount(liveCount + loadCountOfItems(itemSearch, true), liveCount);
+        }
+        return list;
+    }
+    
+    private DetachedCriteria getCriteria(ItemSearch itemSearch, boolean rows, boolean archived) {
+        return rows ? itemSearch.getCriteriaForRows(archived) : itemSearch.getCriteria(archived);
+    }
+    
+    private int loadCountOfItems(ItemSearch itemSearch, boolean archived) {
+        DetachedCriteria countCriteria = itemSearch.getCriteriaForCount(archived);
+        countCriteria.setProjection(Projections.rowCount());
+        return (Integer) getHibernateTemplate().findByCriteria(countCriteria).get(0);
     }
     
     public int loadCountOfAllItems() {
@@ -161,35 +236,100 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
         });
     }
     
-    public List<Item> findAllItems(final int firstResult, final int batchSize) {
-        return getHibernateTemplate().executeFind(new HibernateCallback() {
+    public int loadCountOfArchivedItems() {
+        return (Integer) getHibernateTemplate().execute(new HibernateCallback() {
             public Object doInHibernate(Session session) {
-                session.clear();
-                Criteria criteria = session.createCriteria(Item.class);
-                criteria.setCacheMode(CacheMode.IGNORE);
-                criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
-                criteria.setFetchMode("history", FetchMode.JOIN);
-                criteria.add(Restrictions.ge("id", (long) firstResult));
-                criteria.add(Restrictions.lt("id", (long) firstResult + batchSize));
-                return criteria.list();
+                Criteria criteria = session.createCriteria("ArchivedItem");
+                criteria.setProjection(Projections.rowCount());
+                return criteria.list().get(0);
             }
         });
     }
     
-    public void removeItem(Item item) {
-        getHibernateTemplate().delete(item);
+    public void visitAllItems(final ItemVisitor visitor, final int batchSize) {
+        visitItems(visitor, batchSize, 0, Long.MAX_VALUE);
     }
     
-    public void removeItemItem(ItemItem itemItem) {
-        getHibernateTemplate().delete(itemItem);
+    /**
+     * visits the items with ids after afterItemId up to and including lastItemId
+     */
+    public void visitItems(ItemVisitor visitor, int batchSize, long afterItemId, long lastItemId) {
+        visitItems(visitor, batchSize, null, afterItemId, lastItemId);
     }
     
-    public List<ItemUser> findItemUsersByUser(User user) {
-        return getHibernateTemplate().find("from ItemUser iu where iu.user = ?", user);
+    /**
+     * as above, only the items of one space unless space is null
+     */
+    public void visitItems(ItemVisitor visitor, int batchSize, Space space, long afterItemId, long lastItemId) {
+        visitItems(Item.class.getName(), visitor, batchSize, space, afterItemId, lastItemId);
     }
     
-    public void removeItemUser(ItemUser itemUser) {
-        getHibernateTemplate().delete(itemUser);
+    /**
+     * as above for the items that were moved to the archive
+     */
+    public void visitArchivedItems(ItemVisitor visitor, int batchSize, long afterItemId, long lastItemId) {
+        visitItems("ArchivedItem", visitor, batchSize, null, afterItemId, lastItemId);
+    }
+    
+    private void visitItems(final String entityName, final ItemVisitor visitor, final int batchSize, 
+            final Space space, final long afterItemId, final long lastItemId) {
+        getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(Session session) {
+                long lastId = afterItemId;
+                while(true) {
+                    // seek by id, so gaps in the ids do not matter and each batch is an index range scan
+                    Criteria idCriteria = session.createCriteria(entityName);
+                    idCriteria.setProjection(Projections.id());
+                    idCriteria.add(Restrictions.gt("id", lastId));
+                    idCriteria.add(Restrictions.le("id", lastItemId));
+                    if (space != null) {
+                        idCriteria.add(Restrictions.eq("space", space));
+                    }
+                    idCriteria.addOrder(Order.asc("id"));
+                    idCriteria.setMaxResults(batchSize);
+                    List<Long> ids = idCriteria.list();
+                    if (ids.isEmpty()) {
+                        return null;
+                    }
+                    // history is joined in a second query, setMaxResults does not combine with a collection fetch
+                    Criteria criteria = session.createCriteria(entityName);
+                    criteria.setCacheMode(CacheMode.IGNORE);
+                    criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+                    criteria.setFetchMode("history", FetchMode.JOIN);
+                    criteria.add(Restrictions.in("id", ids));
+                    criteria.addOrder(Order.asc("id"));
+                    for (Item item : (List<Item>) criteria.list()) {
+                        visitor.visit(item);
+                    }
+                    lastId = ids.get(ids.size() - 1);
+                    // write out any changes the visitor made and keep memory use constant
+                    session.flush();
+                    session.clear();
+                }
+            }
+        });
+    }
+    
+    /**
+     * archived items keep their ids, so this covers them as well
+     */
+    public long loadMaxItemId() {
+        long max = 0;
+        for (String entityName : new String[] { "Item", "ArchivedItem" }) {
+            List<Long> list = getHibernateTemplate().find("select max(item.id) from " + entityName + " item");
+            if (!list.isEmpty() && list.get(0) != null) {
+                max = Math.max(max, list.get(0));
+            }
+        }
+        return max;
+    }
+    
+    public void removeItem(Item item) {
+        getHibernateTemplate().delete(item);
+    }
+    
+    public void removeItemItem(ItemItem itemItem) {
+        getHibernateTemplate().delete(itemItem);
     }
     
     public void storeAttachment(Attachment attachment) {
@@ -216,12 +356,20 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
         return (UserSpaceRole) getHibernateTemplate().get(UserSpaceRole.class, id);
     }
     
+    public void setSequenceBlockSize(int sequenceBlockSize) {
+        this.sequenceBlockSize = sequenceBlockSize;
+    }
+    
     public long loadNextSequenceNum(final long spaceSequenceId) {
+        if (sequenceBlockSize > 1) {
+            return loadNextSequenceNumFromBlock(spaceSequenceId);
+        }
         return (Long) getHibernateTemplate().execute(new HibernateCallback() {
             public Object doInHibernate(Session session) {  
                 session.flush();
                 session.setCacheMode(CacheMode.IGNORE);
-                SpaceSequence ss = (SpaceSequence) session.get(SpaceSequence.class, spaceSequenceId);
+                // row lock held till commit, the service layer lock is released before that
+                SpaceSequence ss = (SpaceSequence) session.get(SpaceSequence.class, spaceSequenceId, LockMode.UPGRADE);
                 long next = ss.getAndIncrement();
                 session.update(ss);
                 session.flush();
@@ -230,6 +378,145 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
         });
     }
     
+    /**
+     * reserves a range of numbers with one update for a bulk import and returns the first
+     * the range is taken from the table so it cannot overlap a block held in memory
+     */
+    public long reserveSequenceNums(final long spaceSequenceId, final int count) {
+        return (Long) getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(Session session) {
+                session.flush();
+                session.setCacheMode(CacheMode.IGNORE);
+                SpaceSequence ss = (SpaceSequence) session.get(SpaceSequence.class, spaceSequenceId, LockMode.UPGRADE);
+                long first = ss.getNextSeqNum();
+                ss.setNextSeqNum(first + count);
+                session.update(ss);
+                session.flush();
+                return first;
+            }
+        });
+    }
+    
+    /**
+     * hi/lo style allocation, a block of numbers is reserved in the space_sequence
+     * table with one update and handed out from memory after that.  unused numbers
+     * are given back on shutdown if possible, else there will be a gap in the sequence
+     */
+    private long loadNextSequenceNumFromBlock(long spaceSequenceId) {
+        SequenceBlock block = sequenceBlocks.get(spaceSequenceId);
+        if (block == null) {
+            sequenceBlocks.putIfAbsent(spaceSequenceId, new SequenceBlock(spaceSequenceId));
+            block = sequenceBlocks.get(spaceSequenceId);
+        }
+        synchronized(block) {
+            if (block.isExhausted()) {
+                reserveSequenceBlock(block);
+            }
+            return block.next++;
+        }
+    }
+    
+    /**
+     * numbers from the block are handed out to other transactions before the
+     * current one completes, so the block is reserved in a session and
+     * transaction of its own that commits straight away, a rollback of the
+     * current transaction can never give the block out a second time
+     */
+    private void reserveSequenceBlock(final SequenceBlock block) {
+        Session session = getSessionFactory().openSession();
+        Transaction tx = null;
+        Long next = null;
+        try {
+            tx = session.beginTransaction();
+            next = reserveSequenceBlock(session, block.id);
+            tx.commit();
+        } catch (RuntimeException e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        } finally {
+            session.close();
+        }
+        if (next == null) {
+            // the space was created by the current transaction and is not visible
+            // to any other, so nobody else can reserve from it before it commits
+            next = (Long) getHibernateTemplate().execute(new HibernateCallback() {
+                public Object doInHibernate(Session session) {
+                    session.flush();
+                    return reserveSequenceBlock(session, block.id);
+                }
+            });
+        }
+        block.next = next;
+        block.end = next + sequenceBlockSize;
+        logger.debug("reserved sequence block for space id: " + block.id + " [" + block.next + ", " + block.end + ")");
+    }
+    
+    /**
+     * returns the start of the reserved block, or null if the space sequence
+     * cannot be seen from this session
+     */
+    private Long reserveSequenceBlock(Session session, long id) {
+        session.setCacheMode(CacheMode.IGNORE);
+        SpaceSequence ss = (SpaceSequence) session.get(SpaceSequence.class, id, LockMode.UPGRADE);
+        if (ss == null) {
+            return null;
+        }
+        long next = ss.getNextSeqNum();
+        ss.setNextSeqNum(next + sequenceBlockSize);
+        session.update(ss);
+        session.flush();
+        return next;
+    }
+    
+    /**
+     * runs in its own session, outside of any transaction in progress
+     */
+    private int updateNextSequenceNum(long spaceSequenceId, long nextSeqNum, String operator, long currentSeqNum) {
+        Session session = getSessionFactory().openSession();
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            int count = session.createQuery("update SpaceSequence ss set ss.nextSeqNum = ?"
+                    + " where ss.id = ? and ss.nextSeqNum " + operator + " ?")
+                    .setLong(0, nextSeqNum).setLong(1, spaceSequenceId).setLong(2, currentSeqNum).executeUpdate();
+            tx.commit();
+            return count;
+        } catch (RuntimeException e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+    
+    /**
+     * note that this is automatically configured to run on shutdown
+     * as a spring bean "destroy-method"
+     */
+    public void releaseSequenceBlocks() {
+        for (SequenceBlock block : sequenceBlocks.values()) {
+            synchronized(block) {
+                if (block.isExhausted()) {
+                    continue;
+                }
+                // only possible if no other block was reserved after ours
+                try {
+                    int count = updateNextSequenceNum(block.id, block.next, "=", block.end);
+                    if (count > 0) {
+                        logger.info("released unused sequence numbers for space id: " + block.id + " [" + block.next + ", " + block.end + ")");
+                    }
+                } catch (Exception e) {
+                    logger.warn("failed to release unused sequence numbers for space id: " + block.id + ": " + e);
+                }
+                block.end = block.next;
+            }
+        }
+    }
+    
     public void storeSpaceSequence(SpaceSequence spaceSequence) {
         getHibernateTemplate().save(spaceSequence);
     }
@@ -268,7 +555,9 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
     }
     
     public void removeUser(User user) {
-        getHibernateTemplate().delete(user);
+        // not delete(user) which would cascade to the roles one row at a time
+        // and fail on roles already removed by bulkUpdateDeleteUserSpaceRolesForUser
+        getHibernateTemplate().bulkUpdate("delete User user where user.id = ?", user.getId());
     }
     
     public List<User> findAllUsers() {
@@ -330,7 +619,34 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
     public int loadCountOfHistoryInvolvingUser(User user) {
         Long count = (Long) getHibernateTemplate().find("select count(history) from History history where "
                 + " history.loggedBy = ? or history.assignedTo = ?", new Object[] {user, user}).get(0);
-        return count.intValue();
+        Long archivedCount = (Long) getHibernateTemplate().find("select count(history) from ArchivedHistory history where "
+                + " history.loggedBy = ? or history.assignedTo = ?", new Object[] {user, user}).get(0);
+        return count.intValue() + archivedCount.intValue();
+    }
+    
+    public int loadCountOfItemUsersInvolvingUser(User user) {
+        // both go through the index on item_users.user_id
+        Long count = (Long) getHibernateTemplate().find("select count(iu) from ItemUser iu where iu.user = ?", user).get(0);
+        Long archivedCount = (Long) getHibernateTemplate().find("select count(iu) from ArchivedItemUser iu where iu.user = ?", user).get(0);
+        return count.intValue() + archivedCount.intValue();
+    }
+    
+    public int bulkUpdateDeleteItemUsersForUser(final User user) {
+        int count = getHibernateTemplate().bulkUpdate("delete ItemUser iu where iu.user.id = ?", user.getId());
+        logger.debug("deleted " + count + " records from item_users");
+        // the archive mappings are immutable, so plain SQL
+        int archivedCount = (Integer) getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(Session session) {
+                return session.createSQLQuery("delete from item_users_archive where user_id = :userId")
+                        .setLong("userId", user.getId()).executeUpdate();
+            }
+        });
+        logger.debug("deleted " + archivedCount + " records from item_users_archive");
+        return count + archivedCount;
+    }
+    
+    public int bulkUpdateDeleteUserSpaceRolesForUser(User user) {
+        return getHibernateTemplate().bulkUpdate("delete UserSpaceRole usr where usr.user.id = ?", user.getId());
     }
     
     //==========================================================================
@@ -341,46 +657,58 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
             return null;
         }
         CountsHolder ch = new CountsHolder();
-        HibernateTemplate ht = getHibernateTemplate();
-        List<Object[]> loggedByList = ht.find("select item.space.id, count(item) from Item item" 
-                + " where item.loggedBy.id = ? group by item.space.id", user.getId());
-        List<Object[]> assignedToList = ht.find("select item.space.id, count(item) from Item item" 
-                + " where item.assignedTo.id = ? group by item.space.id", user.getId());
-        List<Object[]> statusList = ht.findByNamedParam("select item.space.id, count(item) from Item item" 
-                + " where item.space in (:spaces) group by item.space.id", "spaces", spaces);
-        for(Object[] oa : loggedByList) {
-            ch.addLoggedByMe((Long) oa[0], (Long) oa[1]);
-        }
-        for(Object[] oa : assignedToList) {
-            ch.addAssignedToMe((Long) oa[0], (Long) oa[1]);
-        }
-        for(Object[] oa : statusList) {
-            ch.addTotal((Long) oa[0], (Long) oa[1]);
+        // one pass over the items of the user's spaces instead of one query per type of count
+        List<Object[]> list = getHibernateTemplate().findByNamedParam("select item.space.id,"
+                + " sum(case when item.loggedBy.id = :userId then 1 else 0 end),"
+                + " sum(case when item.assignedTo.id = :userId then 1 else 0 end), count(item)"
+                + " from Item item where item.space in (:spaces) group by item.space.id",
+                new String[] {"userId", "spaces"}, new Object[] {user.getId(), spaces});
+        for(Object[] oa : list) {
+            long spaceId = (Long) oa[0];
+            long loggedByMe = ((Number) oa[1]).longValue();
+            long assignedToMe = ((Number) oa[2]).longValue();
+            if (loggedByMe > 0) {
+                ch.addLoggedByMe(spaceId, loggedByMe);
+            }
+            if (assignedToMe > 0) {
+                ch.addAssignedToMe(spaceId, assignedToMe);
+            }
+            ch.addTotal(spaceId, (Long) oa[3]);
         }
         return ch;
     }
     
     public Counts loadCountsForUserSpace(User user, Space space) {
-        HibernateTemplate ht = getHibernateTemplate();
-        List<Object[]> loggedByList = ht.find("select status, count(item) from Item item" 
-                + " where item.loggedBy.id = ? and item.space.id = ? group by item.status", new Object[] {user.getId(), space.getId()});
-        List<Object[]> assignedToList = ht.find("select status, count(item) from Item item" 
-                + " where item.assignedTo.id = ? and item.space.id = ? group by item.status", new Object[] {user.getId(), space.getId()});
-        List<Object[]> statusList = ht.find("select status, count(item) from Item item" 
-                + " where item.space.id = ? group by item.status", space.getId());
+        List<Object[]> list = getHibernateTemplate().find("select item.status,"
+                + " sum(case when item.loggedBy.id = ? then 1 else 0 end),"
+                + " sum(case when item.assignedTo.id = ? then 1 else 0 end), count(item)"
+                + " from Item item where item.space.id = ? group by item.status",
+                new Object[] {user.getId(), user.getId(), space.getId()});
         Counts c = new Counts(true);
-        for(Object[] oa : loggedByList) {
-            c.addLoggedByMe((Integer) oa[0], (Long) oa[1]);
-        }
-        for(Object[] oa : assignedToList) {
-            c.addAssignedToMe((Integer) oa[0], (Long) oa[1]);
-        }
-        for(Object[] oa : statusList) {
-            c.addTotal((Integer) oa[0], (Long) oa[1]);
+        for(Object[] oa : list) {
+            int status = (Integer) oa[0];
+            long loggedByMe = ((Number) oa[1]).longValue();
+            long assignedToMe = ((Number) oa[2]).longValue();
+            if (loggedByMe > 0) {
+                c.addLoggedByMe(status, loggedByMe);
+            }
+            if (assignedToMe > 0) {
+                c.addAssignedToMe(status, assignedToMe);
+            }
+            c.addTotal(status, (Long) oa[3]);
         }
         return c;
     }
     
+    /**
+     * rows of space id, status, logged by id, assigned to id (may be null) and count
+     */
+    public List<Object[]> findItemCountsForSpaces(Collection<Long> spaceIds) {
+        return getHibernateTemplate().findByNamedParam("select item.space.id, item.status, item.loggedBy.id, assignedTo.id, count(item)"
+                + " from Item item left join item.assignedTo assignedTo where item.space.id in (:spaceIds)"
+                + " group by item.space.id, item.status, item.loggedBy.id, assignedTo.id", "spaceIds", spaceIds);
+    }
+    
     //==========================================================================
     
     public List<User> findUsersForSpace(long spaceId) {
@@ -395,6 +723,11 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
     
     public void removeUserSpaceRole(UserSpaceRole userSpaceRole) {
         getHibernateTemplate().delete(userSpaceRole);
+        // the (inverse) collection on the user is not touched by the delete
+        // so the second-level cache entry would still point to the deleted row
+        if (userSpaceRole.getUser() != null) {
+            getSessionFactory().evictCollection(User.class.getName() + ".userSpaceRoles", userSpaceRole.getUser().getId());
+        }
     }
     
     public List<Config> findAllConfig() {
@@ -424,12 +757,13 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
         return itemCount + (Integer) criteria.list().get(0);
     }
     
-    public int bulkUpdateFieldToNull(Space space, Field field) {
+    public int bulkUpdateFieldToNull(Space space, Field field, long afterItemId, long lastItemId) {
+        Object[] params = new Object[] {space.getId(), afterItemId, lastItemId};
         int itemCount = getHibernateTemplate().bulkUpdate("update Item item set item." + field.getName() + " = null" 
-                + " where item.space.id = ?", space.getId());
+                + " where " + ITEMS_IN_RANGE, params);
         logger.info("no of Item rows where " + field.getName() + " set to null = " + itemCount);
         int historyCount = getHibernateTemplate().bulkUpdate("update History history set history." + field.getName() + " = null"
-                + " where history.parent in ( from Item item where item.space.id = ? )", space.getId());
+                + " where history.parent in ( from Item item where " + ITEMS_IN_RANGE + " )", params);
         logger.info("no of History rows where " + field.getName() + " set to null = " + historyCount);
         return itemCount;
     }
@@ -449,14 +783,15 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
         return itemCount + (Integer) criteria.list().get(0);
     }
     
-    public int bulkUpdateFieldToNullForValue(Space space, Field field, int optionKey) {
+    public int bulkUpdateFieldToNullForValue(Space space, Field field, int optionKey, long afterItemId, long lastItemId) {
+        Object[] params = new Object[] {optionKey, space.getId(), afterItemId, lastItemId};
         int itemCount = getHibernateTemplate().bulkUpdate("update Item item set item." + field.getName() + " = null" 
-                + " where item.space.id = ?"
-                + " and item." + field.getName() + " = ?", new Object[] {space.getId(), optionKey});
+                + " where item." + field.getName() + " = ?"
+                + " and " + ITEMS_IN_RANGE, params);
         logger.info("no of Item rows where " + field.getName() + " value '" + optionKey + "' replaced with null = " + itemCount);
         int historyCount = getHibernateTemplate().bulkUpdate("update History history set history." + field.getName() + " = null"
                 + " where history." + field.getName() + " = ?"
-                + " and history.parent in ( from Item item where item.space.id = ? )", new Object[] {optionKey, space.getId()});
+                + " and history.parent in ( from Item item where " + ITEMS_IN_RANGE + " )", params);
         logger.info("no of History rows where " + field.getName() + " value '" + optionKey + "' replaced with null = " + historyCount);
         return itemCount;
     }
@@ -476,13 +811,14 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
         return itemCount + (Integer) criteria.list().get(0);
     }
     
-    public int bulkUpdateStatusToOpen(Space space, int status) {
+    public int bulkUpdateStatusToOpen(Space space, int status, long afterItemId, long lastItemId) {
+        Object[] params = new Object[] {status, space.getId(), afterItemId, lastItemId};
         int itemCount = getHibernateTemplate().bulkUpdate("update Item item set item.status = " + State.OPEN 
-                + " where item.status = ? and item.space.id = ?", new Object[] {status, space.getId()});
+                + " where item.status = ? and " + ITEMS_IN_RANGE, params);
         logger.info("no of Item rows where status changed from " + status + " to " + State.OPEN + " = " + itemCount);
         int historyCount = getHibernateTemplate().bulkUpdate("update History history set history.status = " + State.OPEN 
                 + " where history.status = ?"
-                + " and history.parent in ( from Item item where item.space.id = ? )", new Object[] {status, space.getId()});
+                + " and history.parent in ( from Item item where " + ITEMS_IN_RANGE + " )", params);
         logger.info("no of History rows where status changed from " + status + " to " + State.OPEN + " = " + historyCount);
         return itemCount;
     }
@@ -501,16 +837,228 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
         }
     }
     
-    public int bulkUpdateDeleteItemsForSpace(Space space) {
+    public int bulkUpdateDeleteItemsForSpace(final Space space, final long afterItemId, final long lastItemId) {
+        final Object[] params = new Object[] {space.getId(), afterItemId, lastItemId};
         int historyCount = getHibernateTemplate().bulkUpdate("delete History history where history.parent in"
-                + " ( from Item item where item.space.id = ? )", space.getId());
+                + " ( from Item item where " + ITEMS_IN_RANGE + " )", params);
         logger.debug("deleted " + historyCount + " records from history");
         int itemItemCount = getHibernateTemplate().bulkUpdate("delete ItemItem itemItem where itemItem.item in"
-                + " ( from Item item where item.space.id = ? )", space.getId());
+                + " ( from Item item where " + ITEMS_IN_RANGE + " ) or itemItem.relatedItem in"
+                + " ( from Item item where " + ITEMS_IN_RANGE + " )", new Object[] {
+                    space.getId(), afterItemId, lastItemId, space.getId(), afterItemId, lastItemId});
         logger.debug("deleted " + itemItemCount + " records from item_items");
-        int itemCount = getHibernateTemplate().bulkUpdate("delete Item item where item.space.id = ?", space.getId());
+        // no mapped property to go through from these to the item
+        int otherCount = (Integer) getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(Session session) {
+                int count = 0;
+                for (String table : new String[] {"item_users", "item_tags"}) {
+                    SQLQuery query = session.createSQLQuery("delete from " + table + " where item_id in"
+                            + " (select id from items where space_id = ? and id > ? and id <= ?)");
+                    for (int i = 0; i < params.length; i++) {
+                        query.setLong(i, (Long) params[i]);
+                    }
+                    count += query.executeUpdate();
+                }
+                return count;
+            }
+        });
+        logger.debug("deleted " + otherCount + " records from item_users and item_tags");
+        // children come after their parents and may be in a later chunk
+        getHibernateTemplate().bulkUpdate("update Item item set item.parent = null where item.space.id = ?"
+                + " and item.parent.id > ? and item.parent.id <= ?", params);
+        int itemCount = getHibernateTemplate().bulkUpdate("delete Item item where " + ITEMS_IN_RANGE, params);
         logger.debug("deleted " + itemCount + " records from items");
-        return historyCount + itemItemCount + itemCount;
+        return historyCount + itemItemCount + otherCount + itemCount;
+    }
+    
+    public int bulkUpdateDeleteArchivedItemsForSpace(final Space space) {
+        return (Integer) getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(Session session) {
+                String items = "select id from items_archive where space_id = :spaceId";
+                String[] statements = new String[] {
+                    "delete from item_items_archive where item_id in (" + items + ") or related_item_id in (" + items + ")",
+                    "delete from item_tags_archive where item_id in (" + items + ")",
+                    "delete from item_users_archive where item_id in (" + items + ")",
+                    "delete from attachments_archive where id in (select attachment_id from history_archive"
+                            + " where item_id in (" + items + "))",
+                    "delete from history_archive where item_id in (" + items + ")",
+                    "delete from items_archive where space_id = :spaceId"
+                };
+                int count = 0;
+                for (String statement : statements) {
+                    count += session.createSQLQuery(statement).setLong("spaceId", space.getId()).executeUpdate();
+                }
+                logger.debug("deleted " + count + " archived records");
+                return count;
+            }
+        });
+    }
+    
+    // the chunk of items that a background job works on, see Job
+    private static final String ITEMS_IN_RANGE = "item.space.id = ? and item.id > ? and item.id <= ?";
+    
+    public List<Long> findItemIdsForSpace(final Space space, final long afterItemId, final int maxResults) {
+        return (List<Long>) getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(Session session) {
+                Criteria criteria = session.createCriteria(Item.class);
+                criteria.setProjection(Projections.id());
+                criteria.add(Restrictions.eq("space", space));
+                criteria.add(Restrictions.gt("id", afterItemId));
+                criteria.addOrder(Order.asc("id"));
+                criteria.setMaxResults(maxResults);
+                return criteria.list();
+            }
+        });
+    }
+    
+    public int loadCountOfItemsForSpace(Space space) {
+        Long count = (Long) getHibernateTemplate().find("select count(item) from Item item where item.space = ?", space).get(0);
+        return count.intValue();
+    }
+    
+    //==========================================================================
+    
+    public void storeJob(Job job) {
+        getHibernateTemplate().merge(job);
+    }
+    
+    public Job loadJob(long id) {
+        return (Job) getHibernateTemplate().get(Job.class, id);
+    }
+    
+    public List<Job> findAllJobs() {
+        return getHibernateTemplate().find("from Job job order by job.id");
+    }
+
+    public List<Job> findJobsForSpace(long spaceId) {
+        return getHibernateTemplate().find("from Job job where job.spaceId = ? order by job.id", spaceId);
+    }
+    
+    public void removeJob(Job job) {
+        getHibernateTemplate().delete(job);
+    }
+    
+    //==========================================================================
+    
+    private static final String ITEMS_TO_ARCHIVE = "from Item item where item.status = :closed"
+            + " and not exists (from History history where history.parent = item and history.timeStamp >= :closedBefore)"
+            + " and not exists (from Item child where child.parent = item)";
+    
+    public int loadCountOfItemsToArchive(final Date closedBefore) {
+        return (Integer) getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(Session session) {
+                Query query = session.createQuery("select count(item) " + ITEMS_TO_ARCHIVE);
+                query.setInteger("closed", State.CLOSED);
+                query.setTimestamp("closedBefore", closedBefore);
+                return ((Long) query.uniqueResult()).intValue();
+            }
+        });
+    }
+    
+    /**
+     * moves the closed items of the space in the given range of ids with no
+     * history on or after the given date into the archive tables, along with
+     * their history, attachment metadata (the files stay where they are),
+     * users to notify, tags and relations, items that still have children are
+     * left alone, rows are copied over and deleted with plain SQL
+     */
+    public int bulkUpdateArchiveItems(final Space space, final Date closedBefore, 
+            final long afterItemId, final long lastItemId) {
+        return (Integer) getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(Session session) {
+                // pending changes have to reach the tables before rows are moved out from under them
+                session.flush();
+                Query query = session.createQuery("select item.id " + ITEMS_TO_ARCHIVE 
+                        + " and item.space = :space and item.id > :afterItemId and item.id <= :lastItemId");
+                query.setInteger("closed", State.CLOSED);
+                query.setTimestamp("closedBefore", closedBefore);
+                query.setEntity("space", space);
+                query.setLong("afterItemId", afterItemId);
+                query.setLong("lastItemId", lastItemId);
+                List<Long> ids = query.list();
+                if (ids.isEmpty()) {
+                    return 0;
+                }
+                String items = getColumns("info.jtrac.domain.Item", null);
+                String history = getColumns("info.jtrac.domain.History", null);
+                String attachments = getColumns("info.jtrac.domain.Attachment", "info.jtrac.domain.Item.attachments");
+                String itemUsers = getColumns("info.jtrac.domain.ItemUser", "info.jtrac.domain.Item.itemUsers");
+                String itemTags = getColumns("info.jtrac.domain.ItemTag", "info.jtrac.domain.Item.itemTags");
+                String itemItems = getColumns("info.jtrac.domain.ItemItem", null);
+                List<Long> attachmentIds = session.createSQLQuery("select attachment_id from history"
+                        + " where item_id in (:ids) and attachment_id is not null")
+                        .addScalar("attachment_id", Hibernate.LONG).setParameterList("ids", ids).list();
+                copy(session, "items", items, "id in (:ids)", "ids", ids);
+                copy(session, "history", history, "item_id in (:ids)", "ids", ids);
+                copy(session, "attachments", attachments, "id in (:ids)", "ids", attachmentIds);
+                copy(session, "item_users", itemUsers, "item_id in (:ids)", "ids", ids);
+                copy(session, "item_tags", itemTags, "item_id in (:ids)", "ids", ids);
+                copy(session, "item_items", itemItems, "item_id in (:ids) or related_item_id in (:ids)", "ids", ids);
+                delete(session, "item_items", "item_id in (:ids) or related_item_id in (:ids)", "ids", ids);
+                delete(session, "item_tags", "item_id in (:ids)", "ids", ids);
+                delete(session, "item_users", "item_id in (:ids)", "ids", ids);
+                if (!attachmentIds.isEmpty()) {
+                    session.createSQLQuery("update attachments set previous_id = null where id in (:ids)")
+                            .setParameterList("ids", attachmentIds).executeUpdate();
+                }
+                delete(session, "history", "item_id in (:ids)", "ids", ids);
+                delete(session, "attachments", "id in (:ids)", "ids", attachmentIds);
+                delete(session, "items", "id in (:ids)", "ids", ids);
+                logger.info("archived " + ids.size() + " items from space: " + space.getPrefixCode());
+                // what the session holds of the moved items is stale now
+                session.clear();
+                return ids.size();
+            }
+        });
+    }
+    
+    private static void copy(Session session, String table, String columns, String where, String name, List<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        session.createSQLQuery("insert into " + table + "_archive (" + columns + ")"
+                + " select " + columns + " from " + table + " where " + where)
+                .setParameterList(name, ids).executeUpdate();
+    }
+    
+    private static void delete(Session session, String table, String where, String name, List<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        session.createSQLQuery("delete from " + table + " where " + where).setParameterList(name, ids).executeUpdate();
+    }
+    
+    /**
+     * the mapped columns of the entity, plus the key column of the collection
+     * that owns it if given, the archive tables are mapped with the same names
+     */
+    private String getColumns(String entityName, String collectionRole) {
+        SessionFactory sessionFactory = getSessionFactory();
+        AbstractEntityPersister persister = (AbstractEntityPersister) sessionFactory.getClassMetadata(entityName);
+        List<String> columns = new ArrayList<String>();
+        for (String column : persister.getIdentifierColumnNames()) {
+            columns.add(column);
+        }
+        for (int i = 0; i < persister.getPropertyNames().length; i++) {
+            for (String column : persister.getPropertyColumnNames(i)) {
+                columns.add(column);
+            }
+        }
+        if (collectionRole != null) {
+            AbstractCollectionPersister collectionPersister = 
+                    (AbstractCollectionPersister) sessionFactory.getCollectionMetadata(collectionRole);
+            for (String column : collectionPersister.getKeyColumnNames()) {
+                columns.add(column);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String column : columns) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(column);
+        }
+        return sb.toString();
     }
     
     //==========================================================================
@@ -520,9 +1068,12 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
      * as a spring bean "init-method"
      */
     public void createSchema() {
+        boolean exists = false;
         try {
-            getHibernateTemplate().find("from Item item where item.id = 1");
+            // only the id, so that columns added since are not needed to get as far as updating the schema
+            getHibernateTemplate().find("select item.id from Item item where item.id = 1");
             logger.info("database schema exists, normal startup");
+            exists = true;
         } catch (Exception e) {
             logger.warn("expected database schema does not exist, will create. Error is: " + e.getMessage());
             schemaHelper.createSchema();
@@ -534,8 +1085,20 @@ public class HibernateJtracDao extends HibernateDaoSupport implements JtracDao {
             admin.addSpaceWithRole(null, Role.ROLE_ADMIN);
             logger.info("inserting default admin user into database");
             storeUser(admin);
+            storeConfig(new Config(SCHEMA_VERSION, schemaHelper.getMappingVersion()));
             logger.info("schema creation complete");
         }
+        if (exists) {
+            // a query and not loadConfig, so that the second level cache is not trusted here
+            List<String> versions = getHibernateTemplate().find(
+                    "select config.value from Config config where config.param = ?", SCHEMA_VERSION);
+            String version = schemaHelper.getMappingVersion();
+            if (versions.isEmpty() || !version.equals(versions.get(0))) {
+                logger.info("mapping has changed since the schema was last updated, updating schema");
+                schemaHelper.updateSchema();
+                storeConfig(new Config(SCHEMA_VERSION, version));
+            }
+        }
         List<SpaceSequence> ssList = getHibernateTemplate().loadAll(SpaceSequence.class);
         Map<Long, SpaceSequence> ssMap = new HashMap<Long, SpaceSequence>(ssList.size());
         for(SpaceSequence ss : ssList) {
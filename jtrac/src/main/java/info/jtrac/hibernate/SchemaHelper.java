@@ -16,10 +16,27 @@
 
 package info.jtrac.hibernate;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.zip.CRC32;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.Mapping;
+import org.hibernate.mapping.Index;
+import org.hibernate.mapping.Table;
+import org.hibernate.tool.hbm2ddl.DatabaseMetadata;
 import org.hibernate.tool.hbm2ddl.SchemaUpdate;
+import org.hibernate.tool.hbm2ddl.TableMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.util.StringUtils;
 
 /**
@@ -29,7 +46,9 @@ import org.springframework.util.StringUtils;
  * </p>
  * <p>
  * This method is normally called at the first start of the application to
- * initialize the database.
+ * initialize the database.  On a later start with a changed mapping (see
+ * getMappingVersion) the schema is updated, which adds the tables, columns
+ * and indexes that are mapped but missing, nothing is dropped.
  * </p>
  */
 public class SchemaHelper {
@@ -142,6 +161,140 @@ public class SchemaHelper {
      * Create tables using the given Hibernate configuration data.
      */
     public void createSchema() {
+        logger.info("begin database schema creation =========================");
+        Configuration cfg = getConfiguration();
+        new SchemaUpdate(cfg).execute(true, true);
+        createMissingIndexes(cfg);
+        logger.info("end database schema creation ===========================");
+    }
+    
+    /**
+     * Add what newer versions map to an existing schema, existing data is not
+     * touched.  Every statement run is logged.
+     */
+    public void updateSchema() {
+        logger.info("begin database schema update ===========================");
+        Configuration cfg = getConfiguration();
+        ConnectionProvider connectionProvider = ConnectionProviderFactory.newConnectionProvider(cfg.getProperties());
+        try {
+            Connection connection = connectionProvider.getConnection();
+            try {
+                connection.setAutoCommit(true);
+                Dialect dialect = Dialect.getDialect(cfg.getProperties());
+                String[] script = cfg.generateSchemaUpdateScript(dialect, new DatabaseMetadata(connection, dialect));
+                Statement statement = connection.createStatement();
+                try {
+                    for (String sql : script) {
+                        logger.info("updating schema: " + sql);
+                        try {
+                            statement.executeUpdate(sql);
+                        } catch (SQLException e) {
+                            // as SchemaUpdate does, carry on with the rest
+                            logger.warn("could not update schema: " + e.getMessage());
+                        }
+                    }
+                } finally {
+                    statement.close();
+                }
+            } finally {
+                connectionProvider.closeConnection(connection);
+            }
+        } catch (SQLException e) {
+            logger.error("could not update schema: " + e.getMessage());
+        } finally {
+            connectionProvider.close();
+        }
+        createMissingIndexes(cfg);
+        logger.info("end database schema update =============================");
+    }
+    
+    /**
+     * A checksum of the mapping resources, stored along with the schema so
+     * that the schema only has to be checked for updates when the mapping has
+     * changed, which saves reading the database metadata on every start.
+     */
+    public String getMappingVersion() {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[4096];
+        for (String resource : mappingResources) {
+            try {
+                InputStream is = new ClassPathResource(resource).getInputStream();
+                try {
+                    int count;
+                    while ((count = is.read(buffer)) != -1) {
+                        crc.update(buffer, 0, count);
+                    }
+                } finally {
+                    is.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return Long.toHexString(crc.getValue());
+    }
+    
+    /**
+     * SchemaUpdate does not create the indexes mapped with the index attribute,
+     * not even for new tables, so this adds the ones that are missing.  Like
+     * SchemaUpdate, failures are logged and the rest carries on, an index that
+     * cannot be created only costs speed.
+     */
+    private void createMissingIndexes(Configuration cfg) {
+        Dialect dialect = Dialect.getDialect(cfg.getProperties());
+        Mapping mapping = cfg.buildMapping();
+        String defaultCatalog = cfg.getProperty(Environment.DEFAULT_CATALOG);
+        String defaultSchema = cfg.getProperty(Environment.DEFAULT_SCHEMA);
+        ConnectionProvider connectionProvider = ConnectionProviderFactory.newConnectionProvider(cfg.getProperties());
+        try {
+            Connection connection = connectionProvider.getConnection();
+            try {
+                connection.setAutoCommit(true);
+                DatabaseMetadata meta = new DatabaseMetadata(connection, dialect);
+                Statement statement = connection.createStatement();
+                try {
+                    Iterator tables = cfg.getTableMappings();
+                    while (tables.hasNext()) {
+                        Table table = (Table) tables.next();
+                        if (!table.isPhysicalTable()) {
+                            continue;
+                        }
+                        TableMetadata tableInfo = meta.getTableMetadata(table.getName(),
+                                table.getSchema() == null ? defaultSchema : table.getSchema(),
+                                table.getCatalog() == null ? defaultCatalog : table.getCatalog(),
+                                table.isQuoted());
+                        if (tableInfo == null) {
+                            continue;
+                        }
+                        Iterator indexes = table.getIndexIterator();
+                        while (indexes.hasNext()) {
+                            Index index = (Index) indexes.next();
+                            if (tableInfo.getIndexMetadata(index.getName()) != null) {
+                                continue;
+                            }
+                            String sql = index.sqlCreateString(dialect, mapping, defaultCatalog, defaultSchema);
+                            logger.info("creating missing index: " + sql);
+                            try {
+                                statement.executeUpdate(sql);
+                            } catch (SQLException e) {
+                                logger.warn("could not create index " + index.getName() + ": " + e.getMessage());
+                            }
+                        }
+                    }
+                } finally {
+                    statement.close();
+                }
+            } finally {
+                connectionProvider.closeConnection(connection);
+            }
+        } catch (SQLException e) {
+            logger.error("could not check for missing indexes: " + e.getMessage());
+        } finally {
+            connectionProvider.close();
+        }
+    }
+    
+    private Configuration getConfiguration() {
         Configuration cfg = new Configuration();
         
         if(StringUtils.hasText(dataSourceJndiName)) {
@@ -159,8 +312,6 @@ public class SchemaHelper {
             cfg.addResource(resource);
         } // end for
         
-        logger.info("begin database schema creation =========================");
-        new SchemaUpdate(cfg).execute(true, true);
-        logger.info("end database schema creation ===========================");
+        return cfg;
     }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.jtrac.lucene;
+
+import info.jtrac.domain.AbstractItem;
+import java.io.File;
+import java.io.IOException;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+
+/**
+ * A separate index written by one worker of an index rebuild, so that
+ * workers never wait on each other for the index lock.  The parts are
+ * merged into a new index by Indexer.finishRebuild once all workers are done.
+ * Not thread safe, each part belongs to a single worker.
+ */
+public class IndexPart {
+
+    // null for an in-memory part
+    private final File location;
+    private final Directory directory;
+    private IndexWriter writer;
+    private int count;
+
+    IndexPart(File location, Directory directory, Analyzer analyzer) throws IOException {
+        this.location = location;
+        this.directory = directory;
+        this.writer = new IndexWriter(directory, analyzer, true);
+        // nobody searches a part, so buffer more before writing a segment
+        writer.setMaxBufferedDocs(1000);
+    }
+
+    public void add(AbstractItem item) {
+        try {
+            writer.addDocument(item.createDocument());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        count++;
+    }
+
+    /**
+     * number of documents added so far
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * writes out what is buffered, has to be called before the part is merged
+     */
+    public void close() throws IOException {
+        if (writer != null) {
+            IndexWriter w = writer;
+            writer = null;
+            w.close();
+        }
+    }
+
+    Directory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * removes the files of this part, once merged or when the rebuild failed
+     */
+    public void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            // the part is thrown away anyway
+        }
+        try {
+            directory.close();
+        } catch (IOException e) {
+            // as above
+        }
+        if (location != null) {
+            Indexer.deleteFiles(location);
+        }
+    }
+
+}
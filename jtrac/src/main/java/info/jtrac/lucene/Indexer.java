@@ -1,12 +1,12 @@
 /*
  * Copyright 2002-2005 the original author or authors.
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  *      http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -17,16 +17,604 @@
 package info.jtrac.lucene;
 
 import info.jtrac.domain.AbstractItem;
-import org.springmodules.lucene.index.support.LuceneIndexSupport;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Uses Spring Modules Lucene support, provides Lucene Indexing support
- * in classic Spring Template style
+ * Indexes items and history in the background.  Documents are created by
+ * the caller and put on a bounded queue, a single thread collects them and
+ * commits once commitSize changes are pending or the oldest pending change
+ * has waited commitIntervalMillis.  Callers only wait if the queue is full.
+ *
+ * Every document carries a unique "key" term (see createDocument of Item
+ * and History) and the "itemId" it belongs to, so a document can be
+ * replaced when the item is edited and an item can be dropped along with
+ * its history.  This version of Lucene can only delete through an
+ * IndexReader and add through an IndexWriter, never both at once, so a
+ * commit first applies all pending deletes and then adds all pending
+ * documents, in one writer session.  A replaced document can be missing
+ * from searches for the moment in between, but is never found twice.
+ *
+ * A rebuild writes into separate IndexParts, one per worker, which are
+ * merged into a staging index while the live index keeps serving searches.
+ * Changes that come in meanwhile are applied to the live index as usual and
+ * also recorded, then replayed into the staging index.  Searchers are then
+ * pointed at the staging index (see getSearchDirectory) while the live one
+ * is rewritten from it, so that the index stays where it is configured, and
+ * pointed back once that is done.  Searches never see a partial index.
+ * Once the changes are replayed a marker file is written into the staging
+ * index, if the application dies while the live index is being rewritten,
+ * init() finds the marker and copies the staging index over the live one
+ * again.  A staging index without the marker never got complete and the
+ * live index was not touched yet, so it is just removed.
  */
-public class Indexer extends LuceneIndexSupport {    
-    
-    public void index(AbstractItem item) {        
-        getLuceneIndexTemplate().addDocument(item);
-    }    
-    
+public class Indexer {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /**
+     * documents to delete and / or a document to add, or a task to run on
+     * the indexing thread (commit, rebuild steps) that the caller waits on
+     */
+    static class Entry {
+
+        final Document document;
+        final Term delete;
+        final long queuedTime = System.currentTimeMillis();
+        final Task task;
+        final CountDownLatch done;
+        // set by the indexing thread before done is counted down
+        Exception error;
+
+        Entry(Document document, Term delete) {
+            this.document = document;
+            this.delete = delete;
+            this.task = null;
+            this.done = null;
+        }
+
+        Entry(Task task) {
+            this.document = null;
+            this.delete = null;
+            this.task = task;
+            this.done = new CountDownLatch(1);
+        }
+
+    }
+
+    interface Task {
+        void run() throws IOException;
+    }
+
+    // written into the staging index once it is complete
+    static final String REBUILD_COMPLETE = "rebuild.complete";
+
+    private Directory directory;
+    private Analyzer analyzer;
+    private int queueCapacity = 10000;
+    private int commitSize = 500;
+    private long commitIntervalMillis = 1000;
+
+    private BlockingQueue<Entry> queue;
+    private IndexerStatistics statistics;
+    private Thread thread;
+    private volatile boolean running;
+    // the live index, or the staging index while the live one is rewritten
+    private volatile Directory searchDirectory;
+    // changes whenever what searches would find changes, only written by the indexing thread
+    private volatile long generation;
+
+    // only touched by the indexing thread
+    private final List<Document> documents = new ArrayList<Document>();
+    private final Set<Term> deletes = new LinkedHashSet<Term>();
+    private int pending;
+    // changes applied since a rebuild started, null if none is running
+    private List<Entry> replay;
+    private long firstPendingTime;
+
+    public void setDirectory(Directory directory) {
+        this.directory = directory;
+    }
+
+    public void setAnalyzer(Analyzer analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setCommitSize(int commitSize) {
+        this.commitSize = commitSize;
+    }
+
+    public void setCommitIntervalMillis(long commitIntervalMillis) {
+        this.commitIntervalMillis = commitIntervalMillis;
+    }
+
+    public IndexerStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * the index that searches should be run against right now
+     */
+    public Directory getSearchDirectory() {
+        return searchDirectory;
+    }
+
+    /**
+     * goes up on every commit and every switch of the search directory, so
+     * that searchers know when they have to be opened again
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * creates the index if there is none yet and starts the indexing thread
+     * called by the spring init-method hook
+     */
+    public void init() throws IOException {
+        // nothing else writes to the index, so a lock can only be left over from a crash
+        if (IndexReader.isLocked(directory)) {
+            logger.warn("index was locked, not shut down cleanly? unlocking");
+            IndexReader.unlock(directory);
+        }
+        File staging = getStagingLocation();
+        if (staging != null && staging.exists()) {
+            if (new File(staging, REBUILD_COMPLETE).exists()) {
+                logger.warn("rebuilt index was not swapped in completely, copying again: " + staging);
+                Directory stagingDirectory = FSDirectory.getDirectory(staging, false);
+                if (IndexReader.isLocked(stagingDirectory)) {
+                    IndexReader.unlock(stagingDirectory);
+                }
+                try {
+                    copy(stagingDirectory);
+                } finally {
+                    stagingDirectory.close();
+                }
+            } else {
+                logger.warn("removing incomplete index rebuild: " + staging);
+            }
+            deleteStaging(staging);
+        }
+        if (!IndexReader.indexExists(directory)) {
+            logger.info("no index found, creating empty index");
+            new IndexWriter(directory, analyzer, true).close();
+        } else if (!hasKeys()) {
+            logger.warn("index was built by an older version, edited and deleted items"
+                    + " will show up in searches until the indexes are rebuilt");
+        }
+        searchDirectory = directory;
+        queue = new ArrayBlockingQueue<Entry>(queueCapacity);
+        statistics = new IndexerStatistics(queue);
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                processQueue();
+            }
+        }, "jtrac-indexer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * indexes what is still queued and stops the indexing thread
+     * called by the spring destroy-method hook
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        thread.join();
+    }
+
+    /**
+     * adds the document for a new item or history record
+     */
+    public void index(AbstractItem item) {
+        put(new Entry(createDocument(item), null));
+    }
+
+    public void index(List<? extends AbstractItem> items) {
+        for (AbstractItem item : items) {
+            index(item);
+        }
+    }
+
+    /**
+     * replaces the document for an item or history record that may have
+     * been indexed before, the old document is dropped in the same commit
+     */
+    public void reindex(AbstractItem item) {
+        Document document = createDocument(item);
+        put(new Entry(document, new Term("key", document.get("key"))));
+    }
+
+    public void reindex(List<? extends AbstractItem> items) {
+        for (AbstractItem item : items) {
+            reindex(item);
+        }
+    }
+
+    /**
+     * drops the documents for an item and all of its history
+     */
+    public void remove(long itemId) {
+        put(new Entry(null, new Term("itemId", itemId + "")));
+    }
+
+    public void remove(List<Long> itemIds) {
+        for (long itemId : itemIds) {
+            remove(itemId);
+        }
+    }
+
+    /**
+     * blocks until everything queued so far is searchable
+     */
+    public void flush() {
+        await(new Entry(new Task() {
+            public void run() throws IOException {
+                commit();
+            }
+        }));
+    }
+
+    /**
+     * changes from now on are recorded, to be replayed into the rebuilt
+     * index by finishRebuild, call this before reading anything to rebuild
+     */
+    public void startRebuild() {
+        await(new Entry(new Task() {
+            public void run() throws IOException {
+                if (replay != null) {
+                    throw new IllegalStateException("index rebuild already running");
+                }
+                commit();
+                replay = new ArrayList<Entry>();
+            }
+        }));
+    }
+
+    /**
+     * stops recording changes, for a rebuild that failed
+     */
+    public void abortRebuild() {
+        await(new Entry(new Task() {
+            public void run() throws IOException {
+                replay = null;
+            }
+        }));
+    }
+
+    /**
+     * a new, empty part for one worker of a rebuild, kept on disk next to
+     * the index unless the index itself is in memory
+     */
+    public IndexPart createPart(int number) throws IOException {
+        if (directory instanceof FSDirectory) {
+            File index = ((FSDirectory) directory).getFile();
+            File location = new File(index.getParentFile(), index.getName() + "-part-" + number);
+            return new IndexPart(location, FSDirectory.getDirectory(location, true), analyzer);
+        }
+        return new IndexPart(null, new RAMDirectory(), analyzer);
+    }
+
+    /**
+     * merges these (closed) parts into a new index, replays the changes made
+     * since startRebuild and swaps the new index in, blocks until it is
+     * searchable, the parts are deleted afterwards
+     */
+    public void finishRebuild(List<IndexPart> parts) {
+        final File stagingLocation = getStagingLocation();
+        final Directory staging;
+        try {
+            // the staging index is not shared yet, so this does not hold up the indexing thread
+            staging = stagingLocation == null ? new RAMDirectory() : FSDirectory.getDirectory(stagingLocation, true);
+            Directory[] directories = new Directory[parts.size()];
+            for (int i = 0; i < directories.length; i++) {
+                directories[i] = parts.get(i).getDirectory();
+            }
+            IndexWriter writer = new IndexWriter(staging, analyzer, true);
+            try {
+                // also optimizes, leaving a single segment
+                writer.addIndexes(directories);
+            } finally {
+                writer.close();
+            }
+            logger.info("merged " + parts.size() + " rebuilt index parts");
+        } catch (IOException e) {
+            if (stagingLocation != null) {
+                deleteFiles(stagingLocation);
+            }
+            throw new RuntimeException(e);
+        } finally {
+            for (IndexPart part : parts) {
+                part.delete();
+            }
+        }
+        await(new Entry(new Task() {
+            public void run() throws IOException {
+                try {
+                    if (replay == null) {
+                        throw new IllegalStateException("index rebuild not started");
+                    }
+                    swap(staging, stagingLocation);
+                } finally {
+                    replay = null;
+                    // kept if searches could not be switched back to the live index
+                    if (searchDirectory != staging) {
+                        staging.close();
+                        if (stagingLocation != null) {
+                            deleteStaging(stagingLocation);
+                        }
+                    }
+                }
+            }
+        }));
+    }
+
+    private Document createDocument(AbstractItem item) {
+        try {
+            return item.createDocument();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void put(Entry entry) {
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void await(Entry entry) {
+        put(entry);
+        try {
+            entry.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        if (entry.error != null) {
+            throw new RuntimeException(entry.error.getMessage(), entry.error);
+        }
+    }
+
+    private void processQueue() {
+        while (running || !queue.isEmpty()) {
+            try {
+                long wait = pending == 0 ? 1000 : firstPendingTime + commitIntervalMillis - System.currentTimeMillis();
+                Entry entry = queue.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+                if (entry == null) {
+                    commit();
+                } else if (entry.task != null) {
+                    try {
+                        entry.task.run();
+                    } catch (Exception e) {
+                        // reported to the caller only, changes still pending are kept
+                        entry.error = e;
+                    } finally {
+                        // never leave the caller waiting
+                        entry.done.countDown();
+                    }
+                } else {
+                    add(entry);
+                    if (pending >= commitSize) {
+                        commit();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // only close() stops this thread, and it waits for the queue to be empty
+            } catch (Exception e) {
+                logger.error("indexing failed, " + pending + " uncommitted changes may be lost: " + e, e);
+                reset();
+            }
+        }
+        try {
+            commit();
+        } catch (IOException e) {
+            logger.error("could not commit index on shutdown: " + e);
+        }
+    }
+
+    private void add(Entry entry) {
+        buffer(entry.document, entry.delete, documents, deletes);
+        if (replay != null) {
+            replay.add(entry);
+        }
+        if (pending == 0) {
+            firstPendingTime = entry.queuedTime;
+            statistics.setFirstPendingTime(firstPendingTime);
+        }
+        pending++;
+    }
+
+    private static void buffer(Document document, Term delete, List<Document> documents, Set<Term> deletes) {
+        if (delete != null) {
+            // a document for the same key or item may still be waiting to be added
+            for (Iterator<Document> i = documents.iterator(); i.hasNext();) {
+                if (delete.text().equals(i.next().get(delete.field()))) {
+                    i.remove();
+                }
+            }
+            deletes.add(delete);
+        }
+        if (document != null) {
+            documents.add(document);
+        }
+    }
+
+    private void commit() throws IOException {
+        if (pending == 0) {
+            return;
+        }
+        int count = pending;
+        int deleted;
+        try {
+            deleted = write(directory, documents, deletes);
+            generation++;
+        } finally {
+            reset();
+        }
+        statistics.committed(count);
+        if (logger.isDebugEnabled()) {
+            logger.debug("committed " + count + " changes to index, " + deleted + " documents deleted");
+        }
+    }
+
+    /**
+     * deletes first and then adds, returns the number of documents deleted
+     */
+    private int write(Directory target, List<Document> documents, Set<Term> deletes) throws IOException {
+        int deleted = 0;
+        if (!deletes.isEmpty()) {
+            IndexReader reader = IndexReader.open(target);
+            try {
+                for (Term term : deletes) {
+                    deleted += reader.deleteDocuments(term);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        if (!documents.isEmpty()) {
+            IndexWriter writer = new IndexWriter(target, analyzer, false);
+            try {
+                for (Document document : documents) {
+                    writer.addDocument(document);
+                }
+            } finally {
+                writer.close();
+            }
+        }
+        return deleted;
+    }
+
+    private void swap(Directory staging, File stagingLocation) throws IOException {
+        commit();
+        // the workers may or may not have seen these, so every document
+        // is a replace, which is harmless for documents that are new
+        List<Document> replayDocuments = new ArrayList<Document>();
+        Set<Term> replayDeletes = new LinkedHashSet<Term>();
+        for (Entry entry : replay) {
+            Term delete = entry.delete;
+            if (delete == null) {
+                delete = new Term("key", entry.document.get("key"));
+            }
+            buffer(entry.document, delete, replayDocuments, replayDeletes);
+        }
+        write(staging, replayDocuments, replayDeletes);
+        logger.info("replayed " + replay.size() + " changes made during the rebuild");
+        if (stagingLocation != null && !new File(stagingLocation, REBUILD_COMPLETE).createNewFile()) {
+            throw new IOException("could not mark rebuilt index as complete: " + stagingLocation);
+        }
+        // searches use the new index while the live one is rewritten from it
+        searchDirectory = staging;
+        generation++;
+        copy(staging);
+        searchDirectory = directory;
+        generation++;
+        logger.info("rebuilt index swapped in");
+    }
+
+    /**
+     * replaces the live index with a copy of the given one
+     */
+    private void copy(Directory source) throws IOException {
+        IndexWriter writer = new IndexWriter(directory, analyzer, true);
+        try {
+            writer.addIndexes(new Directory[] { source });
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void reset() {
+        documents.clear();
+        deletes.clear();
+        pending = 0;
+        statistics.setFirstPendingTime(0);
+    }
+
+    /**
+     * where rebuilt indexes are put together, next to the index, null if the
+     * index is in memory
+     */
+    private File getStagingLocation() {
+        if (directory instanceof FSDirectory) {
+            File index = ((FSDirectory) directory).getFile();
+            return new File(index.getParentFile(), index.getName() + "-staging");
+        }
+        return null;
+    }
+
+    /**
+     * the marker goes first, so that a staging index is never taken for
+     * complete once deleting it has started
+     */
+    private static void deleteStaging(File location) {
+        File marker = new File(location, REBUILD_COMPLETE);
+        if (marker.exists() && !marker.delete()) {
+            LoggerFactory.getLogger(Indexer.class).warn("could not delete " + marker);
+            return;
+        }
+        deleteFiles(location);
+    }
+
+    static void deleteFiles(File location) {
+        File[] files = location.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        if (!location.delete()) {
+            LoggerFactory.getLogger(Indexer.class).warn("could not delete " + location);
+        }
+    }
+
+    /**
+     * false if the index has documents but none of them has the unique key
+     */
+    private boolean hasKeys() throws IOException {
+        IndexReader reader = IndexReader.open(directory);
+        try {
+            if (reader.numDocs() == 0) {
+                return true;
+            }
+            TermEnum terms = reader.terms(new Term("key", ""));
+            try {
+                return terms.term() != null && terms.term().field().equals("key");
+            } finally {
+                terms.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.jtrac.lucene;
+
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * live figures for the background indexing queue, exposed over JMX
+ * the lag is how long the oldest change not yet searchable has been waiting
+ */
+public class IndexerStatistics {
+
+    private final BlockingQueue<Indexer.Entry> queue;
+
+    // queued time of the oldest change taken off the queue but not committed, 0 if none
+    private volatile long firstPendingTime;
+    private volatile long lastCommitTime;
+    private volatile long committedCount;
+
+    IndexerStatistics(BlockingQueue<Indexer.Entry> queue) {
+        this.queue = queue;
+    }
+
+    void setFirstPendingTime(long firstPendingTime) {
+        this.firstPendingTime = firstPendingTime;
+    }
+
+    // only called from the indexing thread
+    void committed(int count) {
+        committedCount += count;
+        lastCommitTime = System.currentTimeMillis();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getLagMillis() {
+        long oldest = firstPendingTime;
+        if (oldest == 0) {
+            Indexer.Entry head = queue.peek();
+            if (head == null) {
+                return 0;
+            }
+            oldest = head.queuedTime;
+        }
+        return Math.max(System.currentTimeMillis() - oldest, 0);
+    }
+
+    public long getCommittedCount() {
+        return committedCount;
+    }
+
+    public Date getLastCommitTime() {
+        return lastCommitTime == 0 ? null : new Date(lastCommitTime);
+    }
+
+}
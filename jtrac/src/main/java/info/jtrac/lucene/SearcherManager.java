@@ -0,0 +1,121 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.jtrac.lucene;
+
+import java.io.IOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springmodules.lucene.search.factory.LuceneSearcher;
+import org.springmodules.lucene.search.factory.SearcherFactory;
+import org.springmodules.lucene.search.factory.SimpleLuceneSearcher;
+
+/**
+ * Spring Modules SearcherFactory that hands out one shared Lucene searcher
+ * to all searches instead of opening the index for each of them, so that
+ * the reader and its caches stay warm.  The searcher is opened again only
+ * when the Indexer generation has changed (a commit or a rebuilt index
+ * swapped in), and then at most once per refreshIntervalMillis if that is
+ * set, which bounds the reopening under a steady stream of commits at the
+ * cost of searches lagging behind by up to that long.
+ *
+ * Searchers are reference counted, the close() that the search template
+ * calls when done only releases the searcher, the underlying Lucene
+ * searcher is closed once it has been replaced and the last search using
+ * it has finished.
+ */
+public class SearcherManager implements SearcherFactory {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private Indexer indexer;
+    private long refreshIntervalMillis;
+
+    // guarded by this
+    private SharedSearcher current;
+    private long lastOpened;
+
+    public void setIndexer(Indexer indexer) {
+        this.indexer = indexer;
+    }
+
+    public void setRefreshIntervalMillis(long refreshIntervalMillis) {
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    /**
+     * the current searcher, the caller has to close() it when done
+     */
+    public synchronized LuceneSearcher getSearcher() throws IOException {
+        long generation = indexer.getGeneration();
+        if (current == null || current.generation != generation
+                && System.currentTimeMillis() - lastOpened >= refreshIntervalMillis) {
+            SharedSearcher searcher = new SharedSearcher(
+                    new org.apache.lucene.search.IndexSearcher(indexer.getSearchDirectory()), generation);
+            if (current != null) {
+                current.release();
+            }
+            current = searcher;
+            lastOpened = System.currentTimeMillis();
+            if (logger.isDebugEnabled()) {
+                logger.debug("opened index searcher for generation " + generation);
+            }
+        }
+        current.references++;
+        return current;
+    }
+
+    /**
+     * releases the current searcher, called by the spring destroy-method hook
+     */
+    public synchronized void close() throws IOException {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+    }
+
+    private class SharedSearcher extends SimpleLuceneSearcher {
+
+        private final org.apache.lucene.search.IndexSearcher searcher;
+        private final long generation;
+        // one for the manager while this is current, one per search using it, guarded by the manager
+        private int references = 1;
+
+        SharedSearcher(org.apache.lucene.search.IndexSearcher searcher, long generation) {
+            super(searcher);
+            this.searcher = searcher;
+            this.generation = generation;
+        }
+
+        void release() throws IOException {
+            boolean last;
+            synchronized (SearcherManager.this) {
+                last = --references == 0;
+            }
+            if (last) {
+                searcher.close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+        }
+
+    }
+
+}
@@ -16,6 +16,7 @@
 
 package info.jtrac.util;
 
+import info.jtrac.ItemVisitor;
 import info.jtrac.Jtrac;
 import info.jtrac.domain.Attachment;
 import info.jtrac.domain.Field;
@@ -27,6 +28,7 @@ import info.jtrac.domain.Space;
 import info.jtrac.domain.User;
 import info.jtrac.exception.JtracSecurityException;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.StringReader;
 import java.io.Writer;
 import java.util.List;
@@ -222,7 +224,8 @@ public final class ItemUtils {
         
         if (item.getHistory() != null) {
             row = 1;
-            for(History history : item.getHistory()) {
+            // entries stored as deltas only hold what changed
+            for(History history : item.getHistoryStates()) {
                 sb.append("<tr valign='top'" + (row % 2 == 0 ? altStyle : "") + ">");
                 sb.append("  <td" + tdStyle + ">" + history.getLoggedBy().getName() + "</td>");
                 sb.append("  <td" + tdStyle + ">" + history.getStatusValue() +"</td>");
@@ -251,28 +254,22 @@ public final class ItemUtils {
         return sb.toString();
     }
     
-    public static void writeAsXml(Jtrac jtrac, Writer writer) {
-        final int batchSize = 500;
-        int totalSize = jtrac.loadCountOfAllItems();
-        logger.info("total count: " + totalSize);
-        int firstResult = 0;
-        int currentItem = 0;
+    public static void writeAsXml(Jtrac jtrac, final Writer writer) {
+        logger.info("total count: " + jtrac.loadCountOfAllItems());
+        final int[] currentItem = new int[1];
         try {
-            while(true) {
-                logger.info("processing batch starting from: " + firstResult + ", current: " + currentItem);
-                List<Item> items = jtrac.findAllItems(firstResult, batchSize);
-                for (Item item : items) {
-                    getAsXml(item).write(writer);
-                    currentItem++;  
+            jtrac.visitAllItems(new ItemVisitor() {
+                public void visit(Item item) {
+                    try {
+                        getAsXml(item).write(writer);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    currentItem[0]++;
                 }
-                logger.debug("size of current batch: " + items.size());
-                firstResult += batchSize;
-                if(currentItem >= totalSize || firstResult > totalSize) {
-                    logger.info("batch completed at position: " + currentItem);
-                    writer.flush();
-                    break;
-                } 
-            }
+            });
+            logger.info("batch completed at position: " + currentItem[0]);
+            writer.flush();
         } catch(Exception e) {
             throw new RuntimeException(e);
         }        
@@ -387,7 +384,8 @@ public final class ItemUtils {
         // history
         if (item.getHistory() != null) {  
             Element historyRoot = root.addElement("history");
-            for(History history : item.getHistory()) {   
+            // entries stored as deltas only hold what changed
+            for(History history : item.getHistoryStates()) {   
                 Element event = historyRoot.addElement("event");
                 // index
                 event.addAttribute("eventId", (history.getIndex() + 1) + "");
@@ -28,6 +28,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import org.apache.wicket.markup.html.WebMarkupContainer;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.form.Button;
@@ -236,7 +237,7 @@ public class ExcelImportColumnPage extends BasePage {
                 if(ch.isField()) {
                     options = ch.getField().getOptionsWithIntegerKeys();                            
                 } else { // STATE
-                    options = space.getMetadata().getStatesMap();
+                    options = new TreeMap<Integer, String>(space.getMetadata().getStatesMap());
                     options.remove(State.NEW);
                 }
                 final List<Integer> keys;
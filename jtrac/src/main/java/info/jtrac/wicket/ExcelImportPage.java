@@ -173,9 +173,8 @@ public class ExcelImportPage extends BasePage {
                             return;
                         }                        
                         List<info.jtrac.domain.Item> items = excelFile.getAsItems(space);
-                        getJtrac().storeItems(items);
-                        info(localize("excel_view.importSuccess"));
-                        setResponsePage(new ExcelImportPage());
+                        // long running for a large sheet, progress page takes over
+                        setResponsePage(new ExcelImportProgressPage(items));
                 }
                 action = 0;
                 excelFile.clearSelected();                
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.jtrac.wicket;
+
+import info.jtrac.Jtrac;
+import info.jtrac.domain.BatchInfo;
+import info.jtrac.domain.Item;
+import java.util.List;
+import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.ajax.AjaxSelfUpdatingTimerBehavior;
+import org.apache.wicket.markup.html.basic.Label;
+import org.apache.wicket.model.AbstractReadOnlyModel;
+import org.apache.wicket.util.time.Duration;
+
+/**
+ * excel import running in the background, polled every few seconds like
+ * the index rebuild so that a large sheet does not hold up the request
+ */
+public class ExcelImportProgressPage extends BasePage {      
+    
+    private BatchInfo batchInfo = new BatchInfo();
+    private volatile boolean complete;
+    private volatile String errorMessage;
+    
+    public ExcelImportProgressPage(final List<Item> items) {
+        add(new Label("heading", localize("excel_import_progress.heading")));
+        // long running process, use thread
+        new Thread() {   
+            private transient Jtrac jtrac = getJtrac();
+            public void run() {                            
+                try {                                
+                    jtrac.storeItems(items, batchInfo);
+                } catch (Exception e) { 
+                    logger.error("excel import error", e);
+                    errorMessage = e.getMessage();                                
+                }
+                complete = true;
+            }                    
+        }.start();
+        Label progress = new Label("progress");
+        progress.setOutputMarkupId(true);
+        // poll and update the progress every 5 seconds, moving on
+        // when the previous poll found that the import was done
+        progress.add(new AjaxSelfUpdatingTimerBehavior(Duration.seconds(5)) {
+            @Override
+            protected void onPostProcessTarget(AjaxRequestTarget target) {
+                if(!complete) {
+                    return;
+                }
+                if(errorMessage != null) {
+                    setResponsePage(new ErrorPage(errorMessage));
+                } else {
+                    ExcelImportPage page = new ExcelImportPage();
+                    page.info(localize("excel_view.importSuccess"));
+                    setResponsePage(page);
+                }
+            }            
+        });
+        progress.setModel(new AbstractReadOnlyModel() {
+            public Object getObject() {
+                int total = batchInfo.getTotalSize();
+                int current = batchInfo.getCurrentPosition();
+                int percent = total == 0 ? 0 : 100 * current / total;
+                return percent + "% [" + current + " / " + total + "]";
+            }
+        });
+        add(progress);
+    }
+    
+}
@@ -93,7 +93,13 @@ public class IndexRebuildPage extends BasePage {
                             int total = batchInfo.getTotalSize();
                             int current = batchInfo.getCurrentPosition();
                             int percent = total == 0 ? 0 : 100 * current / total;
-                            return percent + "% [" + current + " / " + total + "]";
+                            StringBuffer sb = new StringBuffer();
+                            sb.append(percent + "% [" + current + " / " + total + "]");
+                            // items per second for each worker thread
+                            for(int i = 0; i < batchInfo.getWorkerCount(); i++) {
+                                sb.append(" | " + (i + 1) + ": " + batchInfo.getWorkerThroughput(i) + "/s");
+                            }
+                            return sb.toString();
                         };
                     };
                     progress.setModel(model);             
@@ -73,7 +73,7 @@ public class ItemListPanel extends BasePanel {
         LoadableDetachableModel itemListModel = new LoadableDetachableModel() {
             protected Object load() {
                 logger.debug("loading item list from database");
-                return getJtrac().findItems(itemSearch);
+                return getJtrac().findItemRows(itemSearch);
             }
         };
         
@@ -196,7 +196,7 @@ public class ItemListPanel extends BasePanel {
             public void onClick() {
                 // temporarily switch off paging of results
                 itemSearch.setPageSize(-1);
-                final ExcelUtils eu = new ExcelUtils(getJtrac().findItems(itemSearch), itemSearch);
+                final ExcelUtils eu = new ExcelUtils(getJtrac().findItemRows(itemSearch), itemSearch);
                 // restore page size
                 itemSearch.setPageSize(pageSize);
                 getRequestCycle().setRequestTarget(new IRequestTarget() {
@@ -92,6 +92,7 @@ public class ItemSearchFormPanel extends BasePanel {
         });
         form.add(pageSizeChoice);        
         form.add(new CheckBox("showHistory"));
+        form.add(new CheckBox("includeArchived"));
         form.add(new Button("search") {
             @Override
             public void onSubmit() {
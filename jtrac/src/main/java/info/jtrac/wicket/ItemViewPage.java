@@ -103,14 +103,16 @@ public class ItemViewPage extends BasePage {
             public void onClick() {
                 setResponsePage(new ItemFormPage(item.getId()));
             }
-        }.setVisible((item.getLoggedBy().getLoginName().equals(user.getLoginName()) && 
+        }.setVisible(!item.isArchived() && 
+        		     ((item.getLoggedBy().getLoginName().equals(user.getLoginName()) && 
         		     ("true".equals(shouldEdit)) &&
         		     (nohistory)) || 
         		     user.isSuperUser() || 
-        		     user.isAdminForSpace(item.getSpace().getId())));                        
-        add(new ItemViewPanel("itemViewPanel", item, isRelate || user.getId() == 0));
+        		     user.isAdminForSpace(item.getSpace().getId()))));                        
+        // archived items are read-only, and their relations are not carried over
+        add(new ItemViewPanel("itemViewPanel", item, isRelate || user.getId() == 0 || item.isArchived()));
         
-        if(user.isGuestForSpace(item.getSpace()) || isRelate) {        
+        if(user.isGuestForSpace(item.getSpace()) || isRelate || item.isArchived()) {        
             add(new WebMarkupContainer("itemViewFormPanel").setVisible(false));
         } else {            
             add(new ItemViewFormPanel("itemViewFormPanel", item, itemSearch));
@@ -220,6 +220,9 @@ public class ItemViewPanel extends BasePanel {
         
         if (item.getHistory() != null) {
             List<History> history = new ArrayList(item.getHistory());
+            // entries stored as deltas only hold what changed, so the field
+            // values shown are those of the item as it was after each entry
+            final List<History> states = item.getHistoryStates();
             add(new ListView("history", history) {
                 /* (non-Javadoc)
                  * @see org.apache.wicket.markup.html.list.ListView#populateItem(org.apache.wicket.markup.html.list.ListItem)
@@ -230,6 +233,7 @@ public class ItemViewPanel extends BasePanel {
                     }
                     
                     final History h = (History) listItem.getModelObject();
+                    final History state = states.get(listItem.getIndex());
                     listItem.add(new Label("loggedBy", new PropertyModel(h, "loggedBy.name")));
                     listItem.add(new Label("status", new PropertyModel(h, "statusValue")));
                     listItem.add(new Label("assignedTo", new PropertyModel(h, "assignedTo.name")));
@@ -246,7 +250,7 @@ public class ItemViewPanel extends BasePanel {
                          */
                         protected void populateItem(ListItem listItem) {
                             Field field = (Field) listItem.getModelObject();
-                            listItem.add(new Label("field", h.getCustomValue(field.getName())));
+                            listItem.add(new Label("field", state.getCustomValue(field.getName())));
                         }
                     });
                 }
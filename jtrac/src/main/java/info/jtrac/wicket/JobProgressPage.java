@@ -0,0 +1,73 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.jtrac.wicket;
+
+import info.jtrac.domain.Job;
+import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.ajax.AjaxSelfUpdatingTimerBehavior;
+import org.apache.wicket.markup.html.basic.Label;
+import org.apache.wicket.model.AbstractReadOnlyModel;
+import org.apache.wicket.util.time.Duration;
+
+/**
+ * progress of a background job, polled every few seconds like the
+ * index rebuild, the job carries on even if the user leaves the page
+ */
+public abstract class JobProgressPage extends BasePage {      
+    
+    private long jobId;
+    private boolean complete;
+    private String errorMessage;
+    
+    public JobProgressPage(String heading, Job job) {
+        this.jobId = job.getId();
+        add(new Label("heading", heading));
+        Label progress = new Label("progress");
+        progress.setOutputMarkupId(true);
+        // poll and update the progress every 5 seconds, moving on
+        // when the previous poll found that the job was done
+        progress.add(new AjaxSelfUpdatingTimerBehavior(Duration.seconds(5)) {
+            @Override
+            protected void onPostProcessTarget(AjaxRequestTarget target) {
+                if(complete) {
+                    onComplete();
+                } else if(errorMessage != null) {
+                    setResponsePage(new ErrorPage(errorMessage));
+                }
+            }            
+        });
+        progress.setModel(new AbstractReadOnlyModel() {
+            public Object getObject() {
+                Job job = getJtrac().loadJob(jobId);
+                if(job == null) {
+                    // the row is removed along with the last chunk
+                    complete = true;
+                    return "100%";
+                }
+                errorMessage = job.getErrorMessage();
+                int total = job.getTotalSize();
+                int current = job.getCurrentPosition();
+                int percent = total == 0 ? 0 : 100 * current / total;
+                return percent + "% [" + current + " / " + total + "]";
+            }
+        });
+        add(progress);
+    }
+    
+    public abstract void onComplete();
+    
+}
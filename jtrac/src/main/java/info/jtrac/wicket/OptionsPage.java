@@ -16,7 +16,9 @@
 
 package info.jtrac.wicket;
 
+import info.jtrac.domain.Job;
 import info.jtrac.domain.User;
+import java.util.List;
 import org.apache.wicket.markup.html.link.Link;
 
 /**
@@ -72,6 +74,39 @@ public class OptionsPage extends BasePage {
             }            
         }.setVisible(isSuperUser));                 
         
+        // only offered once an age has been configured, see "archive.days"
+        add(new Link("archive") {
+            public void onClick() {
+                String heading = localize("archive_items.confirm");
+                String warning = localize("archive_items.line3");
+                String line1 = localize("archive_items.line1", getJtrac().getArchiveAgeInDays() + "");
+                String line2 = localize("archive_items.line2", getJtrac().loadCountOfItemsToArchive() + "");
+                ConfirmPage confirm = new ConfirmPage(OptionsPage.this, heading, warning, new String[] {line1, line2}) {
+                    public void onConfirm() {
+                        showArchiveProgress(getJtrac().bulkUpdateArchiveItems(), 0);
+                    }
+                };
+                setResponsePage(confirm);
+            }            
+        }.setVisible(isSuperUser && getJtrac().getArchiveAgeInDays() > 0));
+        
+    }
+    
+    /**
+     * there is one archive job per space, their progress is shown one after the other
+     */
+    private void showArchiveProgress(final List<Job> jobs, final int index) {
+        if (index == jobs.size()) {
+            setResponsePage(OptionsPage.class);
+            return;
+        }
+        Job job = jobs.get(index);
+        String heading = localize("archive_items.progress", getJtrac().loadSpace(job.getSpaceId()).getName());
+        setResponsePage(new JobProgressPage(heading, job) {
+            public void onComplete() {
+                showArchiveProgress(jobs, index + 1);
+            }
+        });
     }
     
 }
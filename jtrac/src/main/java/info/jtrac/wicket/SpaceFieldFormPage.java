@@ -17,6 +17,7 @@
 package info.jtrac.wicket;
 
 import info.jtrac.domain.Field;
+import info.jtrac.domain.Job;
 import info.jtrac.domain.Space;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -114,21 +115,25 @@ public class SpaceFieldFormPage extends BasePage {
                         setResponsePage(new SpaceFieldListPage(space, null, previous));
                         return;
                     }                    
-                    String heading = localize("space_field_delete.confirm") + " : " + field.getLabel() 
+                    final String heading = localize("space_field_delete.confirm") + " : " + field.getLabel() 
                         + " [" + field.getName().getDescription() + " - " + field.getName().getText() + "]";
                     String warning = localize("space_field_delete.line3");
                     String line1 = localize("space_field_delete.line1");
                     String line2 = localize("space_field_delete.line2", affectedCount + "");                        
                     ConfirmPage confirm = new ConfirmPage(SpaceFieldFormPage.this, heading, warning, new String[] {line1, line2}) {
                         public void onConfirm() {
-                            // database will be updated, if we don't do this
-                            // user may leave without committing metadata change                                
-                            getJtrac().bulkUpdateFieldToNull(space, field);
+                            // metadata is committed first, the database records are
+                            // then updated by a background job that survives restarts
                             space.getMetadata().removeField(field.getName().getText());       
                             getJtrac().storeSpace(space);
                             // synchronize metadata version or else if we save again we get Stale Object Exception
                             space.setMetadata(getJtrac().loadMetadata(space.getMetadata().getId()));
-                            setResponsePage(new SpaceFieldListPage(space, null, previous));
+                            Job job = getJtrac().bulkUpdateFieldToNull(space, field);
+                            setResponsePage(new JobProgressPage(heading, job) {
+                                public void onComplete() {
+                                    setResponsePage(new SpaceFieldListPage(space, null, previous));
+                                }
+                            });
                         }                        
                     };
                     setResponsePage(confirm);
@@ -245,7 +250,7 @@ public class SpaceFieldFormPage extends BasePage {
                     @Override
                     public void onSubmit() {
                         if(option != null) {
-                            field.addOption(option);
+                            field.addOption(option, getJtrac().findOptionKeysReservedByJobs(space, field));
                         }                          
                         setResponsePage(new SpaceFieldFormPage(space, field, previous));
                     }                     
@@ -259,7 +264,7 @@ public class SpaceFieldFormPage extends BasePage {
                 @Override
                 public void onSubmit() {
                     if(option != null) {
-                        field.addOption(option);
+                        field.addOption(option, getJtrac().findOptionKeysReservedByJobs(space, field));
                     }  
                     // may be clone, overwrite anyway
                     space.getMetadata().add(field);                    
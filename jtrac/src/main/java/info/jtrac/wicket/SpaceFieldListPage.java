@@ -19,7 +19,6 @@ package info.jtrac.wicket;
 import info.jtrac.domain.Field;
 import info.jtrac.domain.Space;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import org.apache.wicket.behavior.SimpleAttributeModifier;
@@ -99,7 +98,7 @@ public class SpaceFieldListPage extends BasePage {
                                 }
                             }
                             if (index != swapIndex) {
-                                Collections.swap(fieldOrder, index, swapIndex);
+                                space.getMetadata().swapFieldOrder(index, swapIndex);
                                 setResponsePage(new SpaceFieldListPage(space, field.getName().getText(), previous));
                             }                            
                         }                    
@@ -115,7 +114,7 @@ public class SpaceFieldListPage extends BasePage {
                                 swapIndex = 0;
                             }
                             if (index != swapIndex) {
-                                Collections.swap(fieldOrder, index, swapIndex);
+                                space.getMetadata().swapFieldOrder(index, swapIndex);
                                 setResponsePage(new SpaceFieldListPage(space, field.getName().getText(), previous));
                             }                            
                         }                        
@@ -147,7 +146,8 @@ public class SpaceFieldListPage extends BasePage {
             };            
             add(listView);
             
-            final Map<String, String> types = space.getMetadata().getAvailableFieldTypes();
+            final Map<String, String> types = space.getMetadata().getAvailableFieldTypes(
+                    getJtrac().findFieldNamesReservedByJobs(space));
             List<String> typesList = new ArrayList(types.keySet());    
             // pre-select the drop down for convenience
             if(typesList.size() > 0) {
@@ -171,7 +171,8 @@ public class SpaceFieldListPage extends BasePage {
                     if(type == null) {
                         return;
                     }                    
-                    Field field = space.getMetadata().getNextAvailableField(Integer.parseInt(type));
+                    Field field = space.getMetadata().getNextAvailableField(Integer.parseInt(type), 
+                            getJtrac().findFieldNamesReservedByJobs(space));
                     field.initOptions();
                     setResponsePage(new SpaceFieldFormPage(space, field, previous));          
                 }                 
@@ -17,6 +17,7 @@
 package info.jtrac.wicket;
 
 import info.jtrac.domain.Field;
+import info.jtrac.domain.Job;
 import info.jtrac.domain.Space;
 import java.io.Serializable;
 import org.apache.wicket.markup.html.WebPage;
@@ -76,7 +77,7 @@ public class SpaceFieldOptionPage extends BasePage {
                 public void onSubmit() {
                     int affectedCount = getJtrac().loadCountOfRecordsHavingFieldWithValue(space, field, Integer.parseInt(key));
                     if (affectedCount > 0) {
-                        String heading = localize("space_field_option_delete.confirm") + " : " + field.getCustomValue(key) 
+                        final String heading = localize("space_field_option_delete.confirm") + " : " + field.getCustomValue(key) 
                             + " [" + field.getLabel() + "]";
                         String warning = localize("space_field_option_delete.line3");
                         String line1 = localize("space_field_option_delete.line1");
@@ -84,13 +85,17 @@ public class SpaceFieldOptionPage extends BasePage {
                         ConfirmPage confirm = new ConfirmPage(SpaceFieldOptionPage.this, heading, warning, new String[] {line1, line2}) {
                             public void onConfirm() {
                                 field.getOptions().remove(key);        
-                                getJtrac().bulkUpdateFieldToNullForValue(space, field, Integer.parseInt(key));
-                                // database has been updated, if we don't do this
-                                // user may leave without committing metadata change       
+                                // metadata is committed first, the database records are
+                                // then updated by a background job that survives restarts
                                 getJtrac().storeSpace(space);
                                 // synchronize metadata else when we save again we get Stale Object Exception
                                 space.setMetadata(getJtrac().loadMetadata(space.getMetadata().getId()));
-                                setResponsePage(new SpaceFieldFormPage(space, field, previous));
+                                Job job = getJtrac().bulkUpdateFieldToNullForValue(space, field, Integer.parseInt(key));
+                                setResponsePage(new JobProgressPage(heading, job) {
+                                    public void onComplete() {
+                                        setResponsePage(new SpaceFieldFormPage(space, field, previous));
+                                    }
+                                });
                             }                        
                         };
                         setResponsePage(confirm);
@@ -16,6 +16,7 @@
 
 package info.jtrac.wicket;
 
+import info.jtrac.domain.Job;
 import info.jtrac.domain.Space;
 import info.jtrac.util.ValidationUtils;
 import java.util.List;
@@ -101,16 +102,20 @@ public class SpaceFormPage extends BasePage {
             Button delete = new Button("delete") {
                 @Override
                 public void onSubmit() {
-                    String heading = localize("space_delete.confirm");
+                    final String heading = localize("space_delete.confirm");
                     String warning = localize("space_delete.line3");
                     String line1 = localize("space_delete.line1");
                     String line2 = localize("space_delete.line2");
                     ConfirmPage confirm = new ConfirmPage(SpaceFormPage.this, heading, warning, new String[] {line1, line2}) {
                         public void onConfirm() {
-                            getJtrac().removeSpace(space);
+                            Job job = getJtrac().removeSpace(space);
                             // logged in user may have been allocated to this space
                             JtracSession.get().refreshPrincipal();
-                            setResponsePage(new SpaceListPage());
+                            setResponsePage(new JobProgressPage(heading, job) {
+                                public void onComplete() {
+                                    setResponsePage(new SpaceListPage());
+                                }
+                            });
                         }                        
                     };
                     setResponsePage(confirm);
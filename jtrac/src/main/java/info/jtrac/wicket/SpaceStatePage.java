@@ -16,6 +16,7 @@
 
 package info.jtrac.wicket;
 
+import info.jtrac.domain.Job;
 import info.jtrac.domain.Space;
 import info.jtrac.domain.State;
 import info.jtrac.util.ValidationUtils;
@@ -73,18 +74,23 @@ public class SpaceStatePage extends BasePage {
                 public void onSubmit() {
                     int affectedCount = getJtrac().loadCountOfRecordsHavingStatus(space, stateKey);
                     if (affectedCount > 0) {
-                        String heading = localize("space_state_delete.confirm") + " : " + stateName;
+                        final String heading = localize("space_state_delete.confirm") + " : " + stateName;
                         String warning = localize("space_state_delete.line3");
                         String line1 = localize("space_state_delete.line1");
                         String line2 = localize("space_state_delete.line2", affectedCount + "");                        
                         ConfirmPage confirm = new ConfirmPage(SpaceStatePage.this, heading, warning, new String[] {line1, line2}) {
                             public void onConfirm() {                                        
-                                getJtrac().bulkUpdateStatusToOpen(space, stateKey);
                                 space.getMetadata().removeState(stateKey);      
                                 getJtrac().storeSpace(space);
                                 // synchronize metadata else when we save again we get Stale Object Exception
                                 space.setMetadata(getJtrac().loadMetadata(space.getMetadata().getId()));
-                                setResponsePage(new SpacePermissionsPage(space, previous));
+                                // items still having the removed state are moved to open in the background
+                                Job job = getJtrac().bulkUpdateStatusToOpen(space, stateKey);
+                                setResponsePage(new JobProgressPage(heading, job) {
+                                    public void onComplete() {
+                                        setResponsePage(new SpacePermissionsPage(space, previous));
+                                    }
+                                });
                             }                        
                         };
                         setResponsePage(confirm);
@@ -145,7 +151,7 @@ public class SpaceStatePage extends BasePage {
             if (stateKey == -1) {
                 space.getMetadata().addState(model.getStateName());
             } else {
-                space.getMetadata().getStatesMap().put(stateKey, model.getStateName());
+                space.getMetadata().renameState(stateKey, model.getStateName());
             }            
             setResponsePage(new SpacePermissionsPage(space, previous));
         }     
@@ -132,8 +132,9 @@ public class UserFormPage extends BasePage {
                     }
                     String heading = localize("user_delete.confirm");                    
                     String line1 = localize("user_delete.line1");
+                    String line2 = localize("user_delete.line3", getJtrac().loadCountOfItemUsersInvolvingUser(user) + "");
                     String warning = localize("user_delete.line2");
-                    ConfirmPage confirm = new ConfirmPage(UserFormPage.this, heading, warning, new String[] {line1}) {
+                    ConfirmPage confirm = new ConfirmPage(UserFormPage.this, heading, warning, new String[] {line1, line2}) {
                         public void onConfirm() {
                             getJtrac().removeUser(user);
                             // logged in user may have been allocated to space with this user assigned
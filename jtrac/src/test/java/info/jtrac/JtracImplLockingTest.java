@@ -0,0 +1,155 @@
+package info.jtrac;
+
+import info.jtrac.domain.Item;
+import info.jtrac.domain.Space;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * tests for the write locking in JtracImpl, uses a stub dao where every
+ * write takes a fixed amount of time, or waits to be let through, so that
+ * overlapping writers can be checked for without a database
+ */
+public class JtracImplLockingTest extends TestCase {
+
+    private static final long WRITE_MILLIS = 10;
+    private static final int ITEMS_PER_WRITER = 20;
+
+    private Map<Long, Long> sequences = new HashMap<Long, Long>();
+    // when set, writers count down on entering storeItem and wait to be released
+    private CountDownLatch inside;
+    private CountDownLatch release;
+
+    private JtracImpl getJtrac() {
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("loadNextSequenceNum")) {
+                    Long spaceId = (Long) args[0];
+                    Long next;
+                    synchronized(sequences) {
+                        next = sequences.get(spaceId);
+                    }
+                    if (next == null) {
+                        next = 1L;
+                    }
+                    // widen the window between read and write, a broken lock will show up as duplicates
+                    Thread.sleep(1);
+                    synchronized(sequences) {
+                        sequences.put(spaceId, next + 1);
+                    }
+                    return next;
+                } else if (name.equals("storeItem")) {
+                    if (inside != null) {
+                        inside.countDown();
+                        release.await(10, TimeUnit.SECONDS);
+                    } else {
+                        Thread.sleep(WRITE_MILLIS);
+                    }
+                }
+                return null;
+            }
+        };
+        JtracDao dao = (JtracDao) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { JtracDao.class }, handler);
+        JtracImpl jtrac = new JtracImpl();
+        jtrac.setDao(dao);
+        return jtrac;
+    }
+
+    private Space getSpace(long id) {
+        Space space = new Space();
+        space.setId(id);
+        space.setPrefixCode("TEST" + id);
+        return space;
+    }
+
+    /**
+     * runs one thread per space given, each storing itemsPerWriter items
+     * the threads are returned once started, errors are added to the list
+     */
+    private List<Thread> startWriters(final JtracImpl jtrac, final List<Space> spaces, final int itemsPerWriter,
+            final List<Long> sequenceNums, final List<Throwable> errors) {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final Space space : spaces) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < itemsPerWriter; i++) {
+                            Item item = new Item();
+                            item.setSpace(space);
+                            item.setSendNotifications(false);
+                            jtrac.storeItem(item, null);
+                            sequenceNums.add(item.getSequenceNum());
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        return threads;
+    }
+    
+    private void storeConcurrently(JtracImpl jtrac, List<Space> spaces, List<Long> sequenceNums) throws Exception {
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (Thread t : startWriters(jtrac, spaces, ITEMS_PER_WRITER, sequenceNums, errors)) {
+            t.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+    }
+
+    public void testWritersInDifferentSpacesStoreAtTheSameTime() throws Exception {
+        JtracImpl jtrac = getJtrac();
+        List<Space> spaces = new ArrayList<Space>();
+        for (long id = 1; id <= 4; id++) {
+            spaces.add(getSpace(id));
+        }
+        inside = new CountDownLatch(spaces.size());
+        release = new CountDownLatch(1);
+        List<Long> sequenceNums = Collections.synchronizedList(new ArrayList<Long>());
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = startWriters(jtrac, spaces, 1, sequenceNums, errors);
+        try {
+            // a single global lock would let only one writer in until it is released
+            assertTrue("writers inside storeItem: " + (spaces.size() - inside.getCount()),
+                    inside.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(spaces.size(), sequenceNums.size());
+    }
+
+    public void testSequenceNumbersUniqueForWritersInSameSpace() throws Exception {
+        JtracImpl jtrac = getJtrac();
+        List<Long> sequenceNums = Collections.synchronizedList(new ArrayList<Long>());
+        Space space = getSpace(1);
+        List<Space> spaces = new ArrayList<Space>();
+        for (int i = 0; i < 4; i++) {
+            spaces.add(space);
+        }
+        storeConcurrently(jtrac, spaces, sequenceNums);
+        Set<Long> unique = new HashSet<Long>(sequenceNums);
+        assertEquals(4 * ITEMS_PER_WRITER, unique.size());
+        assertEquals(4 * ITEMS_PER_WRITER, (long) Collections.max(unique));
+    }
+
+}
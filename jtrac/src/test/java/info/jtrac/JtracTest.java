@@ -1,22 +1,44 @@
 package info.jtrac;
 
+import info.jtrac.domain.AbstractItem;
+import info.jtrac.domain.BatchInfo;
+import info.jtrac.domain.ColumnHeading;
 import info.jtrac.domain.Config;
 import info.jtrac.domain.Counts;
 import info.jtrac.domain.CountsHolder;
 import info.jtrac.domain.Field;
+import info.jtrac.domain.History;
 import info.jtrac.domain.Item;
 import info.jtrac.domain.ItemItem;
+import info.jtrac.domain.ItemSearch;
 import info.jtrac.domain.ItemUser;
+import info.jtrac.domain.Job;
 import info.jtrac.domain.Metadata;
 import info.jtrac.domain.Space;
 import info.jtrac.domain.User;
 import info.jtrac.domain.State;
 import info.jtrac.domain.UserSpaceRole;
+import info.jtrac.hibernate.HibernateJtracDao;
+import info.jtrac.lucene.IndexSearcher;
+import info.jtrac.lucene.Indexer;
 import info.jtrac.util.ItemUtils;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.springframework.aop.framework.Advised;
+import org.springframework.context.MessageSource;
+import org.springframework.jdbc.core.ConnectionCallback;
 
 import org.acegisecurity.GrantedAuthority;
 import org.acegisecurity.userdetails.UserDetails;
@@ -39,6 +61,28 @@ public class JtracTest extends JtracTestBase {
         return space;
     }
     
+    /**
+     * stores the space along with a user that has the "DEFAULT" role in it
+     */
+    private User storeSpaceAndUser(Space space) {
+        jtrac.storeSpace(space);
+        User user = new User();
+        user.setLoginName("test");
+        user.setName("Test User");
+        user.addSpaceWithRole(space, "DEFAULT");
+        jtrac.storeUser(user);
+        return user;
+    }
+    
+    private Item getItem(Space space, User loggedBy, int status) {
+        Item item = new Item();
+        item.setSpace(space);
+        item.setLoggedBy(loggedBy);
+        item.setStatus(status);
+        item.setSendNotifications(false);
+        return item;
+    }
+    
     private Metadata getMetadata() {
         Metadata metadata = new Metadata();
         String xmlString = "<metadata><fields>"
@@ -52,13 +96,35 @@ public class JtracTest extends JtracTestBase {
     private void cleanDatabase() { 
         jdbcTemplate.execute("delete from user_space_roles where id > 1");
         deleteFromTables(new String[] {
+            "jobs",
             "history",
             "items",
+            "item_items_archive",
+            "history_archive",
+            "items_archive",
             "spaces",
             "metadata",
             "space_sequence"                        
         });        
         jdbcTemplate.execute("delete from users where id > 1");         
+        jtrac.clearCounts();
+    }
+    
+    /**
+     * tests that commit leave rows and settings behind, they are cleaned up
+     * here and not at the end of each test so that one failing test does
+     * not fail the tests after it
+     */
+    @Override
+    protected void onTearDownAfterTransaction() throws Exception {
+        // settings that some tests switch on, JtracImpl also holds them in memory
+        for (String param : new String[] {"history.deltas", "archive.days"}) {
+            if (jdbcTemplate.queryForInt("select count(*) from config where param = ?", new Object[] {param}) > 0) {
+                jtrac.storeConfig(new Config(param, ""));
+                jdbcTemplate.update("delete from config where param = ?", new Object[] {param});
+            }
+        }
+        cleanDatabase();
     }
     
     //==========================================================================
@@ -188,6 +254,775 @@ public class JtracTest extends JtracTestBase {
         assertEquals(1, c.getTotal());
     }
     
+    public void testCountsKeptUpToDateAfterCommit() {
+        Space s = getSpace();
+        s.getMetadata().initRoles();
+        User u = storeSpaceAndUser(s);
+        Item i = getItem(s, u, State.OPEN);
+        i.setAssignedTo(u);
+        jtrac.storeItem(i, null);
+        setComplete();
+        endTransaction();
+        // outside the test transaction the counts come from the cache
+        Counts c = jtrac.loadCountsForUserSpace(u, s);
+        assertEquals(1, c.getAssignedToMe());
+        assertEquals("1", c.getTotalForState(State.OPEN));
+        History h = new History();
+        h.setLoggedBy(u);
+        h.setStatus(State.CLOSED);
+        h.setComment("closing");
+        jtrac.storeHistoryForItem(i.getId(), h, null);
+        c = jtrac.loadCountsForUserSpace(u, s);
+        assertEquals(0, c.getAssignedToMe());
+        assertEquals(1, c.getLoggedByMe());
+        assertEquals("", c.getTotalForState(State.OPEN));
+        assertEquals("1", c.getTotalForState(State.CLOSED));
+        // a change behind the back of the cache is only seen once cleared
+        jdbcTemplate.update("update items set status = " + State.OPEN + " where id = " + i.getId());
+        assertEquals(1, jtrac.loadCountsForUser(u).getTotalTotal());
+        assertEquals("1", jtrac.loadCountsForUserSpace(u, s).getTotalForState(State.CLOSED));
+        jtrac.clearCounts();
+        assertEquals("1", jtrac.loadCountsForUserSpace(u, s).getTotalForState(State.OPEN));
+    }
+    
+    public void testCountsLoadedInSinglePass() {
+        Space s = getSpace();
+        jtrac.storeSpace(s);
+        User u1 = new User();
+        u1.setLoginName("test1");
+        u1.addSpaceWithRole(s, "DEFAULT");
+        jtrac.storeUser(u1);
+        User u2 = new User();
+        u2.setLoginName("test2");
+        u2.addSpaceWithRole(s, "DEFAULT");
+        jtrac.storeUser(u2);
+        int total = 500;
+        List<Item> items = new ArrayList<Item>(total);
+        for (int i = 0; i < total; i++) {
+            Item item = getItem(s, i % 2 == 0 ? u1 : u2, i % 4 == 0 ? State.CLOSED : State.OPEN);
+            item.setAssignedTo(i % 5 == 0 ? null : i % 3 == 0 ? u1 : u2);
+            items.add(item);
+        }
+        jtrac.storeItems(items);
+        Statistics stats = ((SessionFactory) applicationContext.getBean("sessionFactory")).getStatistics();
+        stats.setStatisticsEnabled(true);
+        stats.clear();
+        try {
+            // inside the (read write) test transaction the counts come straight from the database
+            Counts c = jtrac.loadCountsForUserSpace(u1, s);
+            assertEquals(1, stats.getQueryExecutionCount());
+            assertEquals(250, c.getLoggedByMe());
+            assertEquals(133, c.getAssignedToMe());
+            assertEquals(total, c.getTotal());
+            assertEquals("125", c.getTotalForState(State.CLOSED));
+            assertEquals("375", c.getTotalForState(State.OPEN));
+            CountsHolder ch = jtrac.loadCountsForUser(u2);
+            assertEquals(2, stats.getQueryExecutionCount());
+            assertEquals(250, ch.getTotalLoggedByMe());
+            assertEquals(267, ch.getTotalAssignedToMe());
+            assertEquals(total, ch.getTotalTotal());
+        } finally {
+            stats.setStatisticsEnabled(false);
+        }
+    }
+    
+    public void testSequenceNumsReservedInBlocks() {
+        HibernateJtracDao hibernateDao = (HibernateJtracDao) dao;
+        hibernateDao.setSequenceBlockSize(10);
+        try {
+            Space s = getSpace();
+            User u = storeSpaceAndUser(s);
+            for (int i = 1; i <= 3; i++) {
+                Item item = getItem(s, u, State.CLOSED);
+                jtrac.storeItem(item, null);
+                assertEquals(i, item.getSequenceNum());
+            }
+            String sql = "select next_seq_num from space_sequence where id = " + s.getId();
+            assertEquals(11, jdbcTemplate.queryForLong(sql));
+            // shutdown hands back the unused numbers
+            hibernateDao.releaseSequenceBlocks();
+            assertEquals(4, jdbcTemplate.queryForLong(sql));
+        } finally {
+            hibernateDao.setSequenceBlockSize(1);
+        }
+        setComplete();
+        endTransaction();
+    }
+    
+    public void testSequenceBlockNotReusedAfterRollback() {
+        HibernateJtracDao hibernateDao = (HibernateJtracDao) dao;
+        hibernateDao.setSequenceBlockSize(10);
+        try {
+            Space s = getSpace();
+            User u = storeSpaceAndUser(s);
+            setComplete();
+            endTransaction();
+            // the transaction that reserves the block rolls back
+            startNewTransaction();
+            Item item = getItem(s, u, State.CLOSED);
+            jtrac.storeItem(item, null);
+            assertEquals(1, item.getSequenceNum());
+            endTransaction();
+            String sql = "select next_seq_num from space_sequence where id = " + s.getId();
+            assertEquals(11, jdbcTemplate.queryForLong(sql));
+            // numbers carry on from the block and never repeat the block elsewhere
+            startNewTransaction();
+            item = getItem(s, u, State.CLOSED);
+            jtrac.storeItem(item, null);
+            assertEquals(2, item.getSequenceNum());
+            assertEquals(11, dao.reserveSequenceNums(s.getId(), 1));
+            setComplete();
+            endTransaction();
+            hibernateDao.releaseSequenceBlocks();
+            assertEquals(12, jdbcTemplate.queryForLong(sql));
+        } finally {
+            hibernateDao.setSequenceBlockSize(1);
+        }
+    }
+    
+    public void testSortByDropDownFieldPagesInOptionOrder() {
+        Space s = getSpace();
+        s.getMetadata().initRoles();
+        Field field = new Field(Field.Name.CUS_INT_01);
+        field.setLabel("Test Label");
+        // option order deliberately differs from the key order
+        field.addOption("3", "High");
+        field.addOption("1", "Medium");
+        field.addOption("2", "Low");
+        s.getMetadata().add(field);
+        User u = storeSpaceAndUser(s);
+        int[] values = new int[] { 2, 1, 3, 1, 2 };
+        for (int value : values) {
+            Item item = getItem(s, u, State.OPEN);
+            item.setCusInt01(value);
+            jtrac.storeItem(item, null);
+        }
+        ItemSearch itemSearch = new ItemSearch(s);
+        itemSearch.setSortFieldName("cusInt01");
+        itemSearch.setSortDescending(false);
+        itemSearch.setPageSize(2);
+        List<Item> page = jtrac.findItems(itemSearch);
+        assertEquals(5, itemSearch.getResultCount());
+        assertEquals(2, page.size());
+        assertEquals(3, page.get(0).getCusInt01().intValue());
+        assertEquals(1, page.get(1).getCusInt01().intValue());
+        itemSearch.setCurrentPage(2);
+        page = jtrac.findItems(itemSearch);
+        assertEquals(1, page.size());
+        assertEquals(2, page.get(0).getCusInt01().intValue());
+        itemSearch.setCurrentPage(0);
+        itemSearch.setSortDescending(true);
+        page = jtrac.findItems(itemSearch);
+        assertEquals(2, page.get(0).getCusInt01().intValue());
+        assertEquals(2, page.get(1).getCusInt01().intValue());
+    }
+    
+    public void testItemRowsHoldOnlyTheVisibleColumns() {
+        Space s = getSpace();
+        s.getMetadata().initRoles();
+        Field field = new Field(Field.Name.CUS_INT_01);
+        field.setLabel("Test Label");
+        field.addOption("3", "High");
+        field.addOption("1", "Medium");
+        field.addOption("2", "Low");
+        s.getMetadata().add(field);
+        User u = storeSpaceAndUser(s);
+        int[] values = new int[] { 2, 1, 3 };
+        for (int i = 0; i < values.length; i++) {
+            Item item = getItem(s, u, State.OPEN);
+            item.setAssignedTo(i == 0 ? u : null);
+            item.setSummary("summary " + i);
+            item.setDetail("detail " + i);
+            item.setCusInt01(values[i]);
+            jtrac.storeItem(item, null);
+        }
+        ItemSearch itemSearch = new ItemSearch(s);
+        itemSearch.setSortFieldName("cusInt01");
+        itemSearch.setSortDescending(false);
+        itemSearch.setPageSize(2);
+        List<Item> rows = jtrac.findItemRows(itemSearch);
+        assertEquals(3, itemSearch.getResultCount());
+        assertEquals(2, rows.size());
+        SessionFactory sf = (SessionFactory) applicationContext.getBean("sessionFactory");
+        Item row = rows.get(0);
+        assertFalse(sf.getCurrentSession().contains(row));
+        assertEquals("TEST-3", row.getRefId());
+        assertEquals("High", row.getCustomValue(Field.Name.CUS_INT_01));
+        assertEquals("summary 2", row.getSummary());
+        assertEquals("Open", row.getStatusValue());
+        assertEquals("Test User", row.getLoggedBy().getName());
+        assertNull(row.getAssignedTo());
+        // the detail column is hidden by default
+        assertNull(row.getDetail());
+        itemSearch.setCurrentPage(1);
+        rows = jtrac.findItemRows(itemSearch);
+        assertEquals(1, rows.size());
+        assertEquals("TEST-1", rows.get(0).getRefId());
+        assertEquals("Test User", rows.get(0).getAssignedTo().getName());
+        // history entries are rows too, text only when the detail column is shown
+        History h = new History();
+        h.setLoggedBy(u);
+        h.setStatus(State.CLOSED);
+        h.setComment("closing");
+        jtrac.storeHistoryForItem(rows.get(0).getId(), h, null);
+        itemSearch.setCurrentPage(0);
+        itemSearch.setShowHistory(true);
+        itemSearch.setSortFieldName("id");
+        itemSearch.setSortDescending(false);
+        itemSearch.setPageSize(-1);
+        List<AbstractItem> history = (List) jtrac.findItemRows(itemSearch);
+        assertEquals(4, history.size());
+        History entry = (History) history.get(1);
+        assertFalse(sf.getCurrentSession().contains(entry));
+        assertEquals("TEST-1", entry.getRefId());
+        assertEquals(1, entry.getIndex());
+        assertEquals("Closed", entry.getStatusValue());
+        assertNull(entry.getComment());
+        for(ColumnHeading ch : itemSearch.getColumnHeadings()) {
+            if (ch.getName() == ColumnHeading.Name.DETAIL) {
+                ch.setVisible(true);
+            }
+        }
+        history = (List) jtrac.findItemRows(itemSearch);
+        entry = (History) history.get(1);
+        assertEquals("closing", entry.getComment());
+        assertEquals(0, ((History) history.get(0)).getIndex());
+        assertEquals("detail 0", history.get(0).getDetail());
+        // across spaces the default sort joins the space for its name
+        ItemSearch userSearch = new ItemSearch(u);
+        userSearch.setSortFieldName("space");
+        rows = jtrac.findItemRows(userSearch);
+        assertEquals(3, rows.size());
+        assertEquals("Test Space", rows.get(0).getSpace().getName());
+    }
+    
+    public void testHistoryStoredAsDeltas() throws Exception {
+        Space s = getSpace();
+        s.getMetadata().initRoles();
+        Field field = new Field(Field.Name.CUS_STR_01);
+        field.setLabel("Test Label");
+        s.getMetadata().add(field);
+        User u = storeSpaceAndUser(s);
+        Item item = getItem(s, u, State.OPEN);
+        item.setSummary("summary");
+        item.setDetail("detail");
+        item.setCusStr01("one");
+        jtrac.storeItem(item, null);
+        long id = item.getId();
+        setComplete();
+        endTransaction();
+        // an edit before the switch stores the whole item again
+        item = loadDetached(id);
+        item.setSummary("summary 2");
+        item.setEditReason("edit");
+        startNewTransaction();
+        jtrac.updateItem(item, u);
+        setComplete();
+        endTransaction();
+        startNewTransaction();
+        item = jtrac.loadItem(id);
+        assertEquals("detail", item.getHistoryStates().get(1).getDetail());
+        assertFalse(item.getLatestHistory().isDelta());
+        assertEquals("detail", item.getLatestHistory().getDetail());
+        // switching on converts what is there, in the background
+        jtrac.storeConfig(new Config("history.deltas", "true"));
+        setComplete();
+        endTransaction();
+        waitForAllJobs();
+        startNewTransaction();
+        item = jtrac.loadItem(id);
+        History h = item.getLatestHistory();
+        assertTrue(h.isDelta());
+        assertNull(h.getDetail());
+        assertEquals("summary 2", h.getSummary());
+        assertFalse(h.isChanged(Field.Name.CUS_STR_01));
+        assertEquals("detail", item.getHistoryStates().get(1).getDetail());
+        assertEquals("one", item.getHistoryStates().get(1).getCusStr01());
+        assertEquals(0, item.storeHistoryAsDeltas());
+        setComplete();
+        endTransaction();
+        // and new entries only hold the changes
+        item = loadDetached(id);
+        item.setCusStr01(null);
+        item.setEditReason("clear");
+        startNewTransaction();
+        jtrac.updateItem(item, u);
+        h = new History();
+        h.setLoggedBy(u);
+        h.setStatus(State.CLOSED);
+        h.setComment("closing");
+        h.setSendNotifications(false);
+        jtrac.storeHistoryForItem(id, h, null);
+        setComplete();
+        endTransaction();
+        startNewTransaction();
+        item = jtrac.loadItem(id);
+        List<History> history = new ArrayList<History>(item.getHistory());
+        assertEquals(4, history.size());
+        h = history.get(2);
+        assertTrue(h.isChanged(Field.Name.CUS_STR_01));
+        assertNull(h.getSummary());
+        assertEquals(Long.valueOf(0), history.get(3).getChangedFields());
+        List<History> states = item.getHistoryStates();
+        assertEquals("summary", states.get(0).getSummary());
+        assertEquals("one", states.get(0).getCusStr01());
+        assertEquals("summary 2", states.get(2).getSummary());
+        assertNull(states.get(2).getCusStr01());
+        assertEquals(State.OPEN, (int) states.get(2).getStatus());
+        assertEquals(State.CLOSED, (int) states.get(3).getStatus());
+        assertEquals("detail", states.get(3).getDetail());
+        assertEquals("closing", states.get(3).getComment());
+        jtrac.storeConfig(new Config("history.deltas", "false"));
+        setComplete();
+        endTransaction();
+        jdbcTemplate.execute("delete from config where param = 'history.deltas'");
+    }
+    
+    public void testDeltaHistoryRenderedAsFullState() throws Exception {
+        Space s = getSpace();
+        s.getMetadata().initRoles();
+        Field field = new Field(Field.Name.CUS_STR_01);
+        field.setLabel("Test Label");
+        s.getMetadata().add(field);
+        s.getMetadata().switchMask(State.OPEN, "DEFAULT", "cusStr01");
+        User u = storeSpaceAndUser(s);
+        Item item = getItem(s, u, State.OPEN);
+        item.setSummary("summary");
+        item.setDetail("detail");
+        item.setCusStr01("one");
+        jtrac.storeItem(item, null);
+        long id = item.getId();
+        jtrac.storeConfig(new Config("history.deltas", "true"));
+        setComplete();
+        endTransaction();
+        waitForAllJobs();
+        item = loadDetached(id);
+        item.setSummary("summary 2");
+        item.setEditReason("edit");
+        startNewTransaction();
+        jtrac.updateItem(item, u);
+        setComplete();
+        endTransaction();
+        startNewTransaction();
+        item = jtrac.loadItem(id);
+        assertTrue(item.getLatestHistory().isDelta());
+        String html = ItemUtils.getAsHtml(item, (MessageSource) null, Locale.ENGLISH);
+        // once in the fields of the item and once per history entry
+        assertEquals(3, html.split("one</td>", -1).length - 1);
+        String xml = ItemUtils.getAsXml(item).asXML();
+        assertEquals(3, xml.split("one</cusStr01>", -1).length - 1);
+        // and so are the rows of a history search
+        ItemSearch itemSearch = new ItemSearch(s);
+        itemSearch.setShowHistory(true);
+        itemSearch.setSortDescending(false);
+        itemSearch.setPageSize(-1);
+        List<AbstractItem> history = (List) jtrac.findItemRows(itemSearch);
+        assertEquals(2, history.size());
+        assertEquals(1, ((History) history.get(1)).getIndex());
+        assertEquals("one", history.get(1).getCusStr01());
+        assertEquals("Open", history.get(1).getStatusValue());
+    }
+    
+    private Item loadDetached(long id) {
+        startNewTransaction();
+        Item item = jtrac.loadItem(id);
+        item.getHistory().size();
+        item.setSendNotifications(false);
+        endTransaction();
+        return item;
+    }
+    
+    public void testClosedItemsMovedToArchive() throws Exception {
+        Space s = getSpace();
+        s.getMetadata().initRoles();
+        User u = storeSpaceAndUser(s);
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.DATE, -100);
+        Date old = calendar.getTime();
+        Item closed = getItem(s, u, State.CLOSED);
+        closed.setSummary("closed");
+        closed.setTimeStamp(old);
+        jtrac.storeItem(closed, null);
+        History h = new History();
+        h.setLoggedBy(u);
+        h.setComment("comment");
+        h.setTimeStamp(old);
+        h.setSendNotifications(false);
+        jtrac.storeHistoryForItem(closed.getId(), h, null);
+        Item open = getItem(s, u, State.OPEN);
+        open.setSummary("open");
+        open.addRelated(closed, ItemItem.RELATED);
+        jtrac.storeItem(open, null);
+        setComplete();
+        endTransaction();
+        startNewTransaction();
+        // nothing is archived until an age has been configured
+        assertEquals(0, jtrac.loadCountOfItemsToArchive());
+        assertTrue(jtrac.bulkUpdateArchiveItems().isEmpty());
+        jtrac.storeConfig(new Config("archive.days", "30"));
+        assertEquals(1, jtrac.loadCountOfItemsToArchive());
+        // one job per space, each chunk in a transaction of its own
+        List<Job> jobs = jtrac.bulkUpdateArchiveItems();
+        assertEquals(1, jobs.size());
+        assertEquals(2, jobs.get(0).getTotalSize());
+        setComplete();
+        endTransaction();
+        waitForAllJobs();
+        startNewTransaction();
+        assertEquals(1, jtrac.loadCountOfAllItems());
+        assertEquals(0, jtrac.loadCountOfItemsToArchive());
+        Item item = jtrac.loadItemByRefId("TEST-1");
+        assertTrue(item.isArchived());
+        assertEquals("closed", item.getSummary());
+        assertEquals(2, item.getHistory().size());
+        assertEquals("comment", item.getLatestHistory().getComment());
+        item = jtrac.loadItemByRefId("TEST-2");
+        assertFalse(item.isArchived());
+        assertTrue(item.getRelatedItems().isEmpty());
+        assertEquals(3, jtrac.loadCountOfHistoryInvolvingUser(u));
+        // searches leave the archive out unless asked, archived items come after the live ones
+        ItemSearch itemSearch = new ItemSearch(s);
+        assertEquals(1, jtrac.findItems(itemSearch).size());
+        itemSearch.setIncludeArchived(true);
+        itemSearch.setPageSize(1);
+        List<Item> items = jtrac.findItems(itemSearch);
+        assertEquals(2, itemSearch.getResultCount());
+        assertEquals("TEST-2", items.get(0).getRefId());
+        itemSearch.setCurrentPage(1);
+        items = jtrac.findItemRows(itemSearch);
+        assertEquals(1, items.size());
+        assertEquals("TEST-1", items.get(0).getRefId());
+        itemSearch.setCurrentPage(0);
+        itemSearch.setPageSize(-1);
+        itemSearch.setShowHistory(true);
+        assertEquals(3, jtrac.findItemRows(itemSearch).size());
+        jtrac.storeConfig(new Config("archive.days", ""));
+        setComplete();
+        endTransaction();
+        jdbcTemplate.execute("delete from config where param = 'archive.days'");
+        // archived items stay searchable by text, also after the indexes are rebuilt
+        jtrac.rebuildIndexes(new BatchInfo());
+        IndexSearcher indexSearcher = (IndexSearcher) applicationContext.getBean("indexSearcher");
+        assertTrue(indexSearcher.findItemIdsContainingText("closed").contains(closed.getId()));
+    }
+    
+    public void testItemsAreIndexedInBackgroundOnlyAfterCommit() {
+        Space s = getSpace();
+        User u = storeSpaceAndUser(s);
+        setComplete();
+        endTransaction();
+        Indexer indexer = (Indexer) applicationContext.getBean("indexer");
+        IndexSearcher indexSearcher = (IndexSearcher) applicationContext.getBean("indexSearcher");
+        for (String word : new String[] {"rolledback", "committed"}) {
+            startNewTransaction();
+            Item item = getItem(s, u, State.OPEN);
+            item.setSummary("summary " + word);
+            jtrac.storeItem(item, null);
+            if (word.equals("committed")) {
+                setComplete();
+            }
+            endTransaction();
+        }
+        indexer.flush();
+        assertEquals(0, indexer.getStatistics().getQueueDepth());
+        assertEquals(0, indexer.getStatistics().getLagMillis());
+        assertEquals(0, indexSearcher.findItemIdsContainingText("rolledback").size());
+        // the item and its first history record
+        assertEquals(2, indexSearcher.findItemIdsContainingText("committed").size());
+    }
+    
+    public void testEditedAndRemovedItemsAreReplacedInIndex() {
+        Space s = getSpace();
+        User u = storeSpaceAndUser(s);
+        Item item = getItem(s, u, State.OPEN);
+        item.setSummary("summary original");
+        jtrac.storeItem(item, null);
+        setComplete();
+        endTransaction();
+        Indexer indexer = (Indexer) applicationContext.getBean("indexer");
+        IndexSearcher indexSearcher = (IndexSearcher) applicationContext.getBean("indexSearcher");
+        //==========================
+        startNewTransaction();
+        Item edited = jtrac.loadItem(item.getId());
+        edited.setSummary("summary edited");
+        edited.setSendNotifications(false);
+        jtrac.updateItem(edited, u);
+        setComplete();
+        endTransaction();
+        indexer.flush();
+        // only the first history record still has the old summary
+        assertEquals(1, indexSearcher.findItemIdsContainingText("original").size());
+        // the item and the new history record, no duplicate of the item
+        assertEquals(2, indexSearcher.findItemIdsContainingText("edited").size());
+        //==========================
+        startNewTransaction();
+        jtrac.removeItem(jtrac.loadItem(item.getId()));
+        setComplete();
+        endTransaction();
+        indexer.flush();
+        assertEquals(0, indexSearcher.findItemIdsContainingText("original").size());
+        assertEquals(0, indexSearcher.findItemIdsContainingText("edited").size());
+    }
+    
+    public void testRebuildIndexesSplitsItemsAcrossWorkers() throws Exception {
+        Space s = getSpace();
+        User u = storeSpaceAndUser(s);
+        for (String word : new String[] {"alpha", "beta", "gamma", "delta", "epsilon"}) {
+            Item item = getItem(s, u, State.OPEN);
+            item.setSummary("rebuilt " + word);
+            jtrac.storeItem(item, null);
+        }
+        setComplete();
+        endTransaction();
+        IndexSearcher indexSearcher = (IndexSearcher) applicationContext.getBean("indexSearcher");
+        BatchInfo batchInfo = new BatchInfo();
+        batchInfo.setBatchSize(2);
+        JtracImpl target = (JtracImpl) ((Advised) jtrac).getTargetSource().getTarget();
+        target.setIndexRebuildWorkers(3);
+        try {
+            jtrac.rebuildIndexes(batchInfo);
+        } finally {
+            // back to the default set up by JtracConfigurer
+            target.setIndexRebuildWorkers(Runtime.getRuntime().availableProcessors());
+        }
+        assertTrue(batchInfo.isComplete());
+        assertEquals(3, batchInfo.getWorkerCount());
+        assertEquals(5, batchInfo.getCurrentPosition());
+        int sum = 0;
+        for (int i = 0; i < batchInfo.getWorkerCount(); i++) {
+            sum += batchInfo.getWorkerPosition(i);
+        }
+        assertEquals(5, sum);
+        // each item and its history record, exactly once
+        assertEquals(10, indexSearcher.findItemIdsContainingText("rebuilt").size());
+        assertEquals(2, indexSearcher.findItemIdsContainingText("gamma").size());
+    }
+    
+    public void testSpaceUpdatesAndRemovalRunAsBackgroundJobs() throws Exception {
+        Space s = getSpace();
+        s.getMetadata().initRoles();
+        s.getMetadata().addState("Fixed");
+        Field field = new Field(Field.Name.CUS_INT_01);
+        field.setLabel("Test Label");
+        s.getMetadata().add(field);
+        User u = storeSpaceAndUser(s);
+        for (int i = 0; i < 3; i++) {
+            Item item = getItem(s, u, i == 0 ? State.OPEN : 2);
+            item.setCusInt01(1);
+            jtrac.storeItem(item, null);
+        }
+        setComplete();
+        endTransaction();
+        startNewTransaction();
+        Job job = jtrac.bulkUpdateStatusToOpen(s, 2);
+        assertEquals(3, job.getTotalSize());
+        setComplete();
+        endTransaction();
+        waitForJob(job);
+        startNewTransaction();
+        assertEquals(0, jtrac.loadCountOfRecordsHavingStatus(s, 2));
+        assertEquals(6, jtrac.loadCountOfRecordsHavingFieldWithValue(s, field, 1));
+        job = jtrac.bulkUpdateFieldToNull(s, field);
+        setComplete();
+        endTransaction();
+        waitForJob(job);
+        startNewTransaction();
+        assertEquals(0, jtrac.loadCountOfRecordsHavingFieldNotNull(s, field));
+        job = jtrac.removeSpace(s);
+        setComplete();
+        endTransaction();
+        waitForJob(job);
+        startNewTransaction();
+        assertNull(jtrac.loadSpace(s.getId()));
+        assertEquals(0, jtrac.loadCountOfAllItems());
+        endTransaction();
+    }
+    
+    private void waitForJob(Job job) throws Exception {
+        for (int i = 0; i < 100 && jtrac.loadJob(job.getId()) != null; i++) {
+            Thread.sleep(100);
+        }
+        assertNull(jtrac.loadJob(job.getId()));
+    }
+    
+    private void waitForAllJobs() throws Exception {
+        for (int i = 0; i < 100 && jdbcTemplate.queryForInt("select count(*) from jobs") > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, jdbcTemplate.queryForInt("select count(*) from jobs"));
+    }
+    
+    public void testKeysetPaginationSeeksFromLastItemOfPreviousPage() {
+        Space s = getSpace();
+        User u = storeSpaceAndUser(s);
+        for (int i = 0; i < 5; i++) {
+            Item item = getItem(s, u, State.OPEN);
+            jtrac.storeItem(item, null);
+        }
+        ItemSearch itemSearch = new ItemSearch(s);
+        itemSearch.setPageSize(2);
+        assertTrue(itemSearch.isKeysetPagination());
+        List<Item> page = jtrac.findItems(itemSearch);
+        assertEquals(5, itemSearch.getResultCount());
+        assertEquals(5, page.get(0).getSequenceNum());
+        assertEquals(4, page.get(1).getSequenceNum());
+        // an item logged meanwhile would shift an offset based page by one
+        Item item = getItem(s, u, State.OPEN);
+        jtrac.storeItem(item, null);
+        itemSearch.setCurrentPage(1);
+        page = jtrac.findItems(itemSearch);
+        assertEquals(1, itemSearch.getSeekPage());
+        assertEquals(3, page.get(0).getSequenceNum());
+        assertEquals(2, page.get(1).getSequenceNum());
+        // count is cached for the rest of the search
+        assertEquals(5, itemSearch.getResultCount());
+        itemSearch.setCurrentPage(2);
+        assertEquals(2, itemSearch.getSeekPage());
+        page = jtrac.findItems(itemSearch);
+        assertEquals(1, page.size());
+        assertEquals(1, page.get(0).getSequenceNum());
+        // back to the first page starts afresh
+        itemSearch.setCurrentPage(0);
+        page = jtrac.findItems(itemSearch);
+        assertEquals(6, itemSearch.getResultCount());
+        assertEquals(6, page.get(0).getSequenceNum());
+    }
+    
+    public void testItemListPageLoadsInBoundedQueries() {
+        Space s = getSpace();
+        s.getMetadata().initRoles();
+        jtrac.storeSpace(s);
+        List<User> users = new ArrayList<User>();
+        for (int i = 0; i < 10; i++) {
+            User u = new User();
+            u.setLoginName("test" + i);
+            u.setName("Test " + i);
+            u.addSpaceWithRole(s, "DEFAULT");
+            jtrac.storeUser(u);
+            users.add(u);
+        }
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < 30; i++) {
+            Item item = getItem(s, users.get(i % 10), State.OPEN);
+            item.setAssignedTo(users.get((i + 3) % 10));
+            items.add(item);
+        }
+        jtrac.storeItems(items);
+        setComplete();
+        endTransaction();
+        SessionFactory sf = (SessionFactory) applicationContext.getBean("sessionFactory");
+        Statistics stats = sf.getStatistics();
+        stats.setStatisticsEnabled(true);
+        try {
+            for (boolean showHistory : new boolean[] {false, true}) {
+                // nothing from the second-level cache, every user would be a select of its own
+                sf.evict(User.class);
+                sf.evict(Space.class);
+                sf.evict(Metadata.class);
+                startNewTransaction();
+                stats.clear();
+                ItemSearch itemSearch = new ItemSearch(jtrac.loadSpace(s.getId()));
+                itemSearch.setShowHistory(showHistory);
+                itemSearch.setPageSize(25);
+                List<AbstractItem> page = (List) jtrac.findItems(itemSearch);
+                assertEquals(25, page.size());
+                // what ItemListPanel touches for the default columns
+                for (AbstractItem row : page) {
+                    assertNotNull(row.getRefId());
+                    assertEquals("Open", row.getStatusValue());
+                    assertNotNull(row.getLoggedBy().getName());
+                    assertNotNull(row.getAssignedTo().getName());
+                }
+                // space, count, page and metadata
+                assertTrue("statements: " + stats.getPrepareStatementCount(), stats.getPrepareStatementCount() <= 4);
+                endTransaction();
+            }
+        } finally {
+            stats.setStatisticsEnabled(false);
+        }
+    }
+    
+    public void testVisitAllItemsInIdOrderAcrossGaps() {
+        Space s = getSpace();
+        User u = storeSpaceAndUser(s);
+        List<Item> stored = new ArrayList<Item>();
+        for (int i = 0; i < 4; i++) {
+            Item item = getItem(s, u, State.OPEN);
+            jtrac.storeItem(item, null);
+            stored.add(item);
+        }
+        setComplete();
+        endTransaction();
+        startNewTransaction();
+        jtrac.removeItem(jtrac.loadItem(stored.get(1).getId()));
+        setComplete();
+        endTransaction();
+        startNewTransaction();
+        final List<Long> sequenceNums = new ArrayList<Long>();
+        dao.visitAllItems(new ItemVisitor() {
+            public void visit(Item item) {
+                assertEquals(1, item.getHistory().size());
+                sequenceNums.add(item.getSequenceNum());
+            }
+        }, 2);
+        assertEquals(Arrays.asList(1L, 3L, 4L), sequenceNums);
+        endTransaction();
+    }
+    
+    public void testStoreItemsImportsInBatches() {
+        Space s = getSpace();
+        User u = storeSpaceAndUser(s);
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < 7; i++) {
+            Item item = getItem(s, u, i % 2 == 0 ? State.OPEN : State.CLOSED);
+            item.setAssignedTo(u);
+            item.setSummary("imported " + i);
+            items.add(item);
+        }
+        BatchInfo batchInfo = new BatchInfo();
+        batchInfo.setBatchSize(3);
+        jtrac.storeItems(items, batchInfo);
+        assertEquals(7, batchInfo.getTotalSize());
+        assertTrue(batchInfo.isComplete());
+        for (int i = 0; i < 7; i++) {
+            Item item = jtrac.loadItem(items.get(i).getId());
+            assertEquals(i + 1, item.getSequenceNum());
+            assertEquals(i % 2 == 0 ? 1 : 2, item.getHistory().size());
+        }
+        // numbers were reserved in the table, the next item carries on from there
+        Item item = getItem(s, u, State.OPEN);
+        jtrac.storeItem(item, null);
+        assertEquals(8, item.getSequenceNum());
+    }
+    
+    public void testMissingIndexesCreatedOnStartup() {
+        assertTrue(getIndexNames("HISTORY").contains("IDX_HISTORY_ITEM_ID"));
+        assertTrue(getIndexNames("ITEM_USERS").contains("IDX_ITEM_USERS_USER_ID"));
+        // as in a database created by an older version
+        jdbcTemplate.execute("drop index idx_history_item_id");
+        assertFalse(getIndexNames("HISTORY").contains("IDX_HISTORY_ITEM_ID"));
+        // the schema is only looked at again when the mapping has changed
+        ((HibernateJtracDao) dao).createSchema();
+        assertFalse(getIndexNames("HISTORY").contains("IDX_HISTORY_ITEM_ID"));
+        jdbcTemplate.update("update config set value = '0' where param = 'schema.version'");
+        ((HibernateJtracDao) dao).createSchema();
+        assertTrue(getIndexNames("HISTORY").contains("IDX_HISTORY_ITEM_ID"));
+    }
+    
+    private Set<String> getIndexNames(final String tableName) {
+        return (Set<String>) jdbcTemplate.execute(new ConnectionCallback() {
+            public Object doInConnection(Connection con) throws SQLException {
+                Set<String> names = new HashSet<String>();
+                ResultSet rs = con.getMetaData().getIndexInfo(null, null, tableName, false, false);
+                while (rs.next()) {
+                    names.add(rs.getString("INDEX_NAME"));
+                }
+                rs.close();
+                return names;
+            }
+        });
+    }
+    
     public void testRemoveSpaceRoleDoesNotOrphanDatabaseRecord() {
         Space space = getSpace();
         jtrac.storeSpace(space);
@@ -226,6 +1061,42 @@ public class JtracTest extends JtracTestBase {
         assertEquals(1, jdbcTemplate.queryForInt("select count(0) from user_space_roles where role_key = 'NEWDEFAULT'"));
     }
     
+    public void testSecondLevelCacheInvalidatedByBulkUpdate() {
+        Space space = getSpace();
+        jtrac.storeSpace(space);
+        User u = new User();
+        u.setLoginName("test");
+        u.addSpaceWithRole(space, "DEFAULT");
+        jtrac.storeUser(u);
+        setComplete();
+        endTransaction();
+        Statistics stats = ((SessionFactory) applicationContext.getBean("sessionFactory")).getStatistics();
+        stats.setStatisticsEnabled(true);
+        stats.clear();
+        try {
+            startNewTransaction();
+            User u1 = jtrac.loadUser(u.getId());
+            assertEquals("DEFAULT", u1.getUserSpaceRoles().iterator().next().getRoleKey());
+            endTransaction();
+            // new session, should come from the second-level cache
+            startNewTransaction();
+            User u2 = jtrac.loadUser(u.getId());
+            assertEquals("DEFAULT", u2.getUserSpaceRoles().iterator().next().getRoleKey());
+            assertTrue(stats.getSecondLevelCacheHitCount() > 0);
+            jtrac.bulkUpdateRenameSpaceRole(space, "DEFAULT", "NEWDEFAULT");
+            setComplete();
+            endTransaction();
+            startNewTransaction();
+            User u3 = jtrac.loadUser(u.getId());
+            assertEquals("NEWDEFAULT", u3.getUserSpaceRoles().iterator().next().getRoleKey());
+            setComplete();
+            endTransaction();
+        } finally {
+            stats.setStatisticsEnabled(false);
+        }
+        cleanDatabase();
+    }
+    
     public void testGetItemAsHtmlDoesNotThrowException() {
         Config config = new Config("mail.server.host", "dummyhost");
         jtrac.storeConfig(config);
@@ -317,6 +1188,7 @@ public class JtracTest extends JtracTestBase {
         endTransaction();
         
         startNewTransaction();
+        assertEquals(1, jtrac.loadCountOfItemUsersInvolvingUser(w));
         jtrac.removeUser(w);
         setComplete();
         endTransaction();
@@ -324,6 +1196,10 @@ public class JtracTest extends JtracTestBase {
         startNewTransaction();  
         Item dummyItem = jtrac.loadItem(i.getId());
         assertEquals(0, dummyItem.getItemUsers().size());
+        assertEquals(0, jtrac.loadCountOfItemUsersInvolvingUser(w));
+        assertNull(jtrac.loadUser(w.getId()));
+        assertEquals(1, jtrac.loadSpaceRolesMapForUser(u.getId()).size());
+        assertEquals(0, jtrac.loadSpaceRolesMapForUser(w.getId()).size());
         
         cleanDatabase();                
         
@@ -0,0 +1,46 @@
+package info.jtrac.config;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+import junit.framework.TestCase;
+
+public class DataSourceFactoryBeanTest extends TestCase {
+    
+    public void testPooledEmbeddedDatabaseReportsBorrowsAndTimeouts() throws Exception {
+        DataSourceFactoryBean factory = new DataSourceFactoryBean();
+        factory.setDriverClassName("org.hsqldb.jdbcDriver");
+        factory.setUrl("jdbc:hsqldb:file:target/pooltest/db");
+        factory.setUsername("sa");
+        factory.setPassword("");
+        factory.setEmbeddedPooled(true);
+        factory.setMaxActive(2);
+        factory.setMaxWait(100);
+        factory.setPoolPreparedStatements(true);
+        DataSource ds = (DataSource) factory.getObject();
+        assertTrue(ds instanceof PooledDataSource);
+        ConnectionPoolStatistics stats = factory.getStatistics();
+        // two readers at the same time, no longer one shared connection
+        Connection c1 = ds.getConnection();
+        Connection c2 = ds.getConnection();
+        assertNotSame(c1, c2);
+        assertEquals(2, stats.getNumActive());
+        assertEquals(2, stats.getBorrowCount());
+        try {
+            ds.getConnection();
+            fail("pool should be exhausted");
+        } catch (SQLException e) {
+            // expected
+        }
+        assertEquals(1, stats.getTimeoutCount());
+        c1.close();
+        c2.close();
+        assertEquals(0, stats.getNumActive());
+        assertEquals(2, stats.getNumIdle());
+        assertTrue(stats.getBorrowWaitMillisMax() >= stats.getBorrowWaitMillisMedian());
+        stats.reset();
+        assertEquals(0, stats.getBorrowCount());
+        factory.destroy();
+    }
+    
+}
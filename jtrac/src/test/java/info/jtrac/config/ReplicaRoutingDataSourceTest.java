@@ -0,0 +1,82 @@
+package info.jtrac.config;
+
+import javax.sql.DataSource;
+import junit.framework.TestCase;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+public class ReplicaRoutingDataSourceTest extends TestCase {
+    
+    private DataSource primary;
+    private DataSource replica;
+    
+    @Override
+    public void setUp() {
+        primary = createDatabase("primary");
+        replica = createDatabase("replica");
+    }
+    
+    @Override
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+    
+    // two in memory HSQLDB instances that can be told apart
+    private DataSource createDatabase(String name) {
+        DataSource ds = new DriverManagerDataSource("org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:routing_" + name, "sa", "");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(ds);
+        jdbcTemplate.execute("drop table db_name if exists");
+        jdbcTemplate.execute("create table db_name (name varchar(10))");
+        jdbcTemplate.execute("insert into db_name values ('" + name + "')");
+        return ds;
+    }
+    
+    private String loadName(DataSource ds, boolean readOnly) {
+        TransactionTemplate tt = new TransactionTemplate(new DataSourceTransactionManager(ds));
+        if (readOnly) {
+            tt.setPropagationBehavior(TransactionDefinition.PROPAGATION_SUPPORTS);
+            tt.setReadOnly(true);
+        }
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(ds);
+        return (String) tt.execute(new TransactionCallback() {
+            public Object doInTransaction(TransactionStatus status) {
+                return jdbcTemplate.queryForObject("select name from db_name", String.class);
+            }
+        });
+    }
+    
+    public void testReadOnlyTransactionsUseReplica() {
+        ReplicaRoutingDataSource ds = new ReplicaRoutingDataSource(primary, replica);
+        assertEquals("replica", loadName(ds, true));
+        assertEquals("primary", loadName(ds, false));
+        assertEquals("primary", new JdbcTemplate(ds).queryForObject("select name from db_name", String.class));
+    }
+    
+    public void testReadsStayOnPrimaryAfterCommitWithinStickyWindow() {
+        ReplicaRoutingDataSource ds = new ReplicaRoutingDataSource(primary, replica);
+        ds.setStickySeconds(60);
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("test", "test"));
+        assertEquals("replica", loadName(ds, true));
+        // read write transaction, commits on the primary
+        assertEquals("primary", loadName(ds, false));
+        assertEquals("primary", loadName(ds, true));
+        // only for the user who made the change
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("other", "other"));
+        assertEquals("replica", loadName(ds, true));
+    }
+    
+    public void testFallBackToPrimaryWhenReplicaIsDown() {
+        DataSource down = new DriverManagerDataSource("org.hsqldb.jdbcDriver", "jdbc:hsqldb:hsql://localhost:1/none", "sa", "");
+        ReplicaRoutingDataSource ds = new ReplicaRoutingDataSource(primary, down);
+        assertEquals("primary", loadName(ds, true));
+        assertEquals("primary", loadName(ds, true));
+    }
+    
+}
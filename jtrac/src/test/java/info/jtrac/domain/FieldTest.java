@@ -2,6 +2,7 @@ package info.jtrac.domain;
 
 import info.jtrac.domain.Field;
 import info.jtrac.util.XmlUtils;
+import java.util.Collections;
 import junit.framework.TestCase;
 import org.dom4j.Document;
 import org.dom4j.Element;
@@ -47,4 +48,13 @@ public class FieldTest extends TestCase {
         assertEquals("Test Label", e.attributeValue("label"));    
     }  
     
+    public void testAddOptionSkipsReservedKeys() {
+        Field field = new Field();
+        field.setName("cusInt01");
+        field.addOption("one");
+        field.addOption("two", Collections.singleton("2"));
+        assertEquals("two", field.getCustomValue("3"));
+        assertEquals("", field.getCustomValue("2"));
+    }
+    
 }
@@ -53,6 +53,15 @@ public class MetadataTest extends TestCase {
         assertEquals(names.size(), Field.Name.values().length - 4);        
     }
     
+    public void testFieldNamesReservedByJobsAreNotAvailable() {
+        Metadata m = new Metadata();
+        Set<String> reserved = Collections.singleton(Field.Name.CUS_INT_01.getText());
+        Field field = m.getNextAvailableField(Field.Name.CUS_INT_01.getType(), reserved);
+        assertFalse(field.getName() == Field.Name.CUS_INT_01);
+        assertFalse(m.getUnusedFieldNames(reserved).contains(Field.Name.CUS_INT_01));
+        assertTrue(m.getUnusedFieldNames().contains(Field.Name.CUS_INT_01));
+    }
+    
     public void testInitRolesThenAddRolesAndStates() {
         Metadata m = new Metadata();
         m.initRoles();
@@ -87,4 +96,68 @@ public class MetadataTest extends TestCase {
         
     }
     
+    private Metadata loadMetadata(String xmlString) {
+        return loadMetadata(42, xmlString);
+    }
+    
+    private Metadata loadMetadata(long id, String xmlString) {
+        // same order in which Hibernate sets the properties
+        Metadata metadata = new Metadata();
+        metadata.setId(id);
+        metadata.setVersion(3);
+        metadata.setXmlString(xmlString);
+        return metadata;
+    }
+    
+    public void testParsedMetadataSharedBetweenLoads() {
+        Metadata m = new Metadata();
+        m.initRoles();
+        m.add(new Field(Field.Name.CUS_INT_01));
+        String xmlString = m.getXmlString();
+        // an id of its own, the other tests put equal but not identical xml in the cache
+        Metadata m1 = loadMetadata(43, xmlString);
+        Metadata m2 = loadMetadata(43, xmlString);
+        assertSame(m1.getField("cusInt01"), m2.getField("cusInt01"));
+        assertSame(xmlString, m2.getXmlString());
+        // a different version must be parsed again
+        Metadata m3 = new Metadata();
+        m3.setId(43);
+        m3.setVersion(4);
+        m3.setXmlString(xmlString);
+        assertNotSame(m1.getField("cusInt01"), m3.getField("cusInt01"));
+    }
+    
+    public void testEditOfSharedMetadataDoesNotLeak() {
+        Metadata m = new Metadata();
+        m.initRoles();
+        m.add(new Field(Field.Name.CUS_INT_01));
+        String xmlString = m.getXmlString();
+        Metadata m1 = loadMetadata(xmlString);
+        Metadata m2 = loadMetadata(xmlString);
+        m1.addState("Testing");
+        m1.switchMask(State.OPEN, "DEFAULT", "cusInt01");
+        m1.add(new Field(Field.Name.CUS_STR_01));
+        assertEquals(4, m1.getStateCount());
+        assertEquals(2, m1.getFieldCount());
+        assertEquals(1, m1.getEditableFields("DEFAULT", State.OPEN).size());
+        assertEquals(3, m2.getStateCount());
+        assertEquals(1, m2.getFieldCount());
+        assertEquals(0, m2.getEditableFields("DEFAULT", State.OPEN).size());
+        assertEquals(xmlString, m2.getXmlString());
+        assertFalse(xmlString.equals(m1.getXmlString()));
+        // a fresh load still gets the original
+        assertEquals(3, loadMetadata(xmlString).getStateCount());
+    }
+    
+    public void testEditableFieldsDoNotChangeSharedFields() {
+        Metadata m = new Metadata();
+        m.initRoles();
+        m.add(new Field(Field.Name.CUS_INT_01));
+        Metadata m1 = loadMetadata(m.getXmlString());
+        // mandatory for the NEW state by default
+        Field f = m1.getEditableFields("DEFAULT", State.NEW).get(0);
+        assertFalse(f.isOptional());
+        assertNotSame(f, m1.getField("cusInt01"));
+    }
+    
 }
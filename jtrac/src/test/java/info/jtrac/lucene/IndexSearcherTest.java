@@ -2,10 +2,17 @@ package info.jtrac.lucene;
 
 import info.jtrac.domain.Item;
 import java.io.File;
+import java.util.Collections;
 import java.util.List;
 import junit.framework.TestCase;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.springframework.context.ApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
+import org.springmodules.lucene.search.factory.LuceneSearcher;
 
 public class IndexSearcherTest extends TestCase {
     
@@ -13,11 +20,11 @@ public class IndexSearcherTest extends TestCase {
     
     @Override
     public void setUp() {
-        File home = new File("target/home");
+        File home = new File("target/lucene-home");
         if (!home.exists()) {
             home.mkdir();
         }
-        File file = new File("target/home/indexes");
+        File file = new File("target/lucene-home/indexes");
         if (!file.exists()) {
             file.mkdir();
         } else {            
@@ -29,6 +36,12 @@ public class IndexSearcherTest extends TestCase {
         context = new FileSystemXmlApplicationContext("src/main/webapp/WEB-INF/applicationContext-lucene.xml");    
     }
     
+    @Override
+    public void tearDown() {
+        // stops the indexing thread
+        ((ConfigurableApplicationContext) context).close();
+    }
+    
     public void testFindItemIdsBySearchingWithinSummaryAndDetailFields() throws Exception {       
         Item item = new Item();
         item.setId(1);
@@ -36,6 +49,8 @@ public class IndexSearcherTest extends TestCase {
         item.setDetail("the quick brown fox jumped over the lazy dogs");
         Indexer indexer = (Indexer) context.getBean("indexer");
         indexer.index(item);
+        // indexing is in the background
+        indexer.flush();
         IndexSearcher searcher = (IndexSearcher) context.getBean("indexSearcher");
         List list = searcher.findItemIdsContainingText("lazy");
         assertEquals(1, list.size());
@@ -52,9 +67,103 @@ public class IndexSearcherTest extends TestCase {
         item.setDetail("there is an umlaut right here --> mlaut");
         Indexer indexer = (Indexer) context.getBean("indexer");
         indexer.index(item);        
+        indexer.flush();
         IndexSearcher searcher = (IndexSearcher) context.getBean("indexSearcher");
         List list = searcher.findItemIdsContainingText("mlaut");
         assertEquals(1, list.size());
     }
     
+    public void testRebuiltIndexIsSwappedInWithChangesMadeMeanwhile() throws Exception {
+        Indexer indexer = (Indexer) context.getBean("indexer");
+        IndexSearcher searcher = (IndexSearcher) context.getBean("indexSearcher");
+        Item stale = new Item();
+        stale.setId(1);
+        stale.setSummary("stale summary");
+        indexer.index(stale);
+        indexer.flush();
+        indexer.startRebuild();
+        IndexPart part = indexer.createPart(0);
+        Item rebuilt = new Item();
+        rebuilt.setId(2);
+        rebuilt.setSummary("rebuilt summary");
+        part.add(rebuilt);
+        part.close();
+        // saved while the rebuild is running
+        Item saved = new Item();
+        saved.setId(3);
+        saved.setSummary("saved summary");
+        indexer.index(saved);
+        indexer.flush();
+        // the old index keeps serving searches
+        assertEquals(1, searcher.findItemIdsContainingText("stale").size());
+        assertEquals(1, searcher.findItemIdsContainingText("saved").size());
+        assertEquals(0, searcher.findItemIdsContainingText("rebuilt").size());
+        indexer.finishRebuild(Collections.singletonList(part));
+        assertEquals(0, searcher.findItemIdsContainingText("stale").size());
+        assertEquals(1, searcher.findItemIdsContainingText("saved").size());
+        assertEquals(1, searcher.findItemIdsContainingText("rebuilt").size());
+        assertFalse(new File("target/lucene-home/indexes-staging").exists());
+        assertFalse(new File("target/lucene-home/indexes-part-0").exists());
+    }
+    
+    public void testCompletedRebuildIsCopiedAgainOnStartup() throws Exception {
+        ((ConfigurableApplicationContext) context).close();
+        // as left behind when dying while the live index was rewritten
+        File staging = new File("target/lucene-home/indexes-staging");
+        Directory directory = FSDirectory.getDirectory(staging, true);
+        IndexWriter writer = new IndexWriter(directory, new StandardAnalyzer(), true);
+        Item item = new Item();
+        item.setId(1);
+        item.setSummary("rebuilt summary");
+        writer.addDocument(item.createDocument());
+        writer.close();
+        directory.close();
+        new File(staging, Indexer.REBUILD_COMPLETE).createNewFile();
+        context = new FileSystemXmlApplicationContext("src/main/webapp/WEB-INF/applicationContext-lucene.xml");
+        IndexSearcher searcher = (IndexSearcher) context.getBean("indexSearcher");
+        assertEquals(1, searcher.findItemIdsContainingText("rebuilt").size());
+        assertFalse(staging.exists());
+    }
+    
+    public void testIncompleteRebuildIsRemovedOnStartup() throws Exception {
+        ((ConfigurableApplicationContext) context).close();
+        File staging = new File("target/lucene-home/indexes-staging");
+        Directory directory = FSDirectory.getDirectory(staging, true);
+        new IndexWriter(directory, new StandardAnalyzer(), true).close();
+        directory.close();
+        context = new FileSystemXmlApplicationContext("src/main/webapp/WEB-INF/applicationContext-lucene.xml");
+        assertFalse(staging.exists());
+    }
+    
+    public void testSearcherIsSharedUntilTheIndexChanges() throws Exception {
+        Indexer indexer = (Indexer) context.getBean("indexer");
+        SearcherManager manager = (SearcherManager) context.getBean("searcherFactory");
+        Item item = new Item();
+        item.setId(1);
+        item.setSummary("first");
+        indexer.index(item);
+        indexer.flush();
+        LuceneSearcher s1 = manager.getSearcher();
+        LuceneSearcher s2 = manager.getSearcher();
+        assertSame(s1, s2);
+        s1.close();
+        s2.close();
+        // released, but not closed while current
+        LuceneSearcher s3 = manager.getSearcher();
+        assertSame(s1, s3);
+        assertEquals(1, s3.maxDoc());
+        item = new Item();
+        item.setId(2);
+        item.setSummary("second");
+        indexer.index(item);
+        indexer.flush();
+        LuceneSearcher s4 = manager.getSearcher();
+        assertNotSame(s3, s4);
+        assertEquals(2, s4.maxDoc());
+        // still in use, so not closed yet
+        assertEquals(1, s3.maxDoc());
+        s3.close();
+        s4.close();
+    }
+    
 }
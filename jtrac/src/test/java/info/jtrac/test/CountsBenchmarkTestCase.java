@@ -0,0 +1,104 @@
+package info.jtrac.test;
+
+import info.jtrac.JtracTestBase;
+import info.jtrac.domain.Item;
+import info.jtrac.domain.Space;
+import info.jtrac.domain.State;
+import info.jtrac.domain.User;
+import info.jtrac.hibernate.HibernateJtracDao;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.springframework.orm.hibernate3.HibernateTemplate;
+
+/**
+ * This class is for development convenience and compares the single pass
+ * dashboard counts with the three separate aggregate queries used before,
+ * over a seeded HSQLDB database.  Only the timings and the number of
+ * statements are printed, nothing is asserted, and like everything in this
+ * package it is left out of the normal build, run it with:
+ * <code>mvn test -Dtest=CountsBenchmarkTestCase</code>
+ * The number of items seeded can be set with the system property
+ * <code>benchmark.items</code>, the data is rolled back at the end.
+ */
+public class CountsBenchmarkTestCase extends JtracTestBase {
+
+    private static final int RUNS = 100;
+
+    public CountsBenchmarkTestCase() {
+        super("testCounts");
+    }
+
+    public void testCounts() {
+        int total = Integer.getInteger("benchmark.items", 2000);
+        Space s = new Space();
+        s.setPrefixCode("BENCH");
+        s.setName("Benchmark Space");
+        s.getMetadata().initRoles();
+        jtrac.storeSpace(s);
+        User u1 = new User();
+        u1.setLoginName("bench1");
+        u1.addSpaceWithRole(s, "DEFAULT");
+        jtrac.storeUser(u1);
+        User u2 = new User();
+        u2.setLoginName("bench2");
+        u2.addSpaceWithRole(s, "DEFAULT");
+        jtrac.storeUser(u2);
+        SessionFactory sf = (SessionFactory) applicationContext.getBean("sessionFactory");
+        int[] states = new int[] {State.OPEN, State.CLOSED};
+        for (int i = 0; i < total; i++) {
+            if (i % 100 == 0) {
+                // keeps the session small, storing gets slower with every item it holds
+                sf.getCurrentSession().flush();
+                sf.getCurrentSession().clear();
+            }
+            Item item = new Item();
+            item.setSpace(s);
+            item.setLoggedBy(i % 2 == 0 ? u1 : u2);
+            item.setAssignedTo(i % 3 == 0 ? u1 : u2);
+            item.setStatus(states[i % states.length]);
+            item.setSendNotifications(false);
+            jtrac.storeItem(item, null);
+        }
+        sf.getCurrentSession().flush();
+        sf.getCurrentSession().clear();
+        HibernateTemplate ht = ((HibernateJtracDao) dao).getHibernateTemplate();
+        // warm up both before timing anything
+        loadCountsSeparately(ht, u1, s);
+        dao.loadCountsForUserSpace(u1, s);
+        Statistics stats = sf.getStatistics();
+        stats.setStatisticsEnabled(true);
+        try {
+            stats.clear();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < RUNS; i++) {
+                loadCountsSeparately(ht, u1, s);
+            }
+            long separate = System.currentTimeMillis() - start;
+            long separateStatements = stats.getPrepareStatementCount();
+            stats.clear();
+            start = System.currentTimeMillis();
+            for (int i = 0; i < RUNS; i++) {
+                dao.loadCountsForUserSpace(u1, s);
+            }
+            long singlePass = System.currentTimeMillis() - start;
+            long singlePassStatements = stats.getPrepareStatementCount();
+            System.out.println("counts for " + total + " items, " + RUNS + " runs: three queries " + separate + " ms, "
+                    + separateStatements + " statements; single pass " + singlePass + " ms, "
+                    + singlePassStatements + " statements");
+        } finally {
+            stats.setStatisticsEnabled(false);
+        }
+    }
+
+    private void loadCountsSeparately(HibernateTemplate ht, User user, Space space) {
+        ht.find("select status, count(item) from Item item"
+                + " where item.loggedBy.id = ? and item.space.id = ? group by item.status",
+                new Object[] {user.getId(), space.getId()});
+        ht.find("select status, count(item) from Item item"
+                + " where item.assignedTo.id = ? and item.space.id = ? group by item.status",
+                new Object[] {user.getId(), space.getId()});
+        ht.find("select status, count(item) from Item item"
+                + " where item.space.id = ? group by item.status", space.getId());
+    }
+
+}